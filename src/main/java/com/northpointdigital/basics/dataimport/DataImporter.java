@@ -6,9 +6,49 @@ import com.northpointdigital.basics.exception.NorthpointException;
 public interface DataImporter {
     static String DEFAULT_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SZ";
     static String TMP_ROOT = "/tmp/data-import/csv";
+    static String CHECKPOINT_ROOT = "/tmp/data-import/checkpoints";
 
+    /**
+     * Imports all lines into a new folder below {@link #TMP_ROOT}, to be
+     * moved to the destination with {@link #commitDryRun}. Fails for delta
+     * import confs, which update nodes in place; use {@link #doValidate}
+     * for those.
+     */
     String[] doDryRun() throws NorthpointException;
+
+    /**
+     * Runs parsing, scripts, conversions, name generation and collision
+     * checks for every line without writing to the repository. Errors are
+     * returned and also passed to {@link ImportListener#lineFailed} as they
+     * are found. The checks are those of {@link #doImport}; a name repeated
+     * within the file is an error, although a dry run stores the repeat
+     * under a unique name.
+     */
+    String[] doValidate() throws NorthpointException;
+
+    /**
+     * Imports all lines. After a failed run, the next run with the same conf,
+     * destination and file resumes after the last saved line. A run with
+     * another conf or file fails until the checkpoint is discarded.
+     */
+    String[] doImport() throws NorthpointException;
+
+    /**
+     * Forgets the unfinished import into the destination, so the next
+     * {@link #doImport} starts at the first line.
+     */
+    void discardCheckpoint() throws NorthpointException;
+
+    /**
+     * Moves the nodes of a successful dry run to the destination. Returns the
+     * nodes that could not be moved; they stay in the dry run tree, and
+     * calling this again retries them.
+     */
+    String[] commitDryRun() throws NorthpointException;
     String getDryRunPath() throws NorthpointException;
     boolean isDryRunSuccess();
     List<String[]> getFields();
+    DeltaReport getDeltaReport();
+    ImportMetrics getMetrics();
+    void addImportListener(ImportListener listener);
 }
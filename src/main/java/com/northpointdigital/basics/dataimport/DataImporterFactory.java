@@ -1,9 +1,31 @@
 package com.northpointdigital.basics.dataimport;
 
 import java.io.Reader;
+import java.nio.channels.FileChannel;
 
 import org.apache.sling.api.resource.ResourceResolver;
 
+import com.northpointdigital.basics.exception.NorthpointException;
+
 public interface DataImporterFactory {
     DataImporter getDataImporter(String type, Reader reader, ResourceResolver rr, String confPath, String destPath);
+    DataImporter getDataImporter(String type, FileChannel channel, ResourceResolver rr, String confPath, String destPath);
+
+    /**
+     * Queues an import that runs in the background with its own session,
+     * impersonating the user of the given resolver. The user must be able
+     * to read the conf and to add, change and remove nodes at the
+     * destination path, or the import is refused. Only one job at a time
+     * may write to a destination path or its subtree.
+     * <p>
+     * The job owns the reader and closes it when done, long after the
+     * request that submitted it is over. Do not pass the stream of an
+     * uploaded file, which the container closes at the end of the request:
+     * save the upload to a temporary file first and pass a reader on it.
+     *
+     * @return the job id
+     */
+    String submitImport(String type, Reader reader, ResourceResolver rr, String confPath, String destPath, boolean dryRun) throws NorthpointException;
+    ImportJob getImportJob(String jobId);
+    boolean cancelImportJob(String jobId);
 }
@@ -0,0 +1,49 @@
+package com.northpointdigital.basics.dataimport;
+
+/**
+ * Counts of a delta import: which lines created, changed or left nodes
+ * untouched, and how many nodes without a line were removed.
+ */
+public class DeltaReport {
+    private long created;
+    private long updated;
+    private long unchanged;
+    private long removed;
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    public long getRemoved() {
+        return removed;
+    }
+
+    public void addCreated() {
+        created++;
+    }
+
+    public void addUpdated() {
+        updated++;
+    }
+
+    public void addUnchanged() {
+        unchanged++;
+    }
+
+    public void addRemoved() {
+        removed++;
+    }
+
+    public String toString() {
+        return "created: " + created + ", updated: " + updated
+                + ", unchanged: " + unchanged + ", removed: " + removed;
+    }
+}
@@ -0,0 +1,47 @@
+package com.northpointdigital.basics.dataimport;
+
+import java.util.Calendar;
+
+/**
+ * An import queued with {@link DataImporterFactory#submitImport}.
+ */
+public interface ImportJob {
+    /**
+     * A finished import with failed lines is SUCCEEDED_WITH_ERRORS; a dry run
+     * with failed lines is FAILED, since it cannot be committed.
+     */
+    enum Status {
+        QUEUED, RUNNING, SUCCEEDED, SUCCEEDED_WITH_ERRORS, FAILED, CANCELLED
+    }
+
+    String getId();
+    String getType();
+
+    /**
+     * Returns the user the job runs as.
+     */
+    String getUserId();
+    String getConfPath();
+    String getDestPath();
+    boolean isDryRun();
+    Status getStatus();
+
+    /**
+     * Returns the errors of the import lines, or the reason the job failed.
+     */
+    String[] getErrors();
+
+    /**
+     * Returns the live metrics once the job is running, null before.
+     */
+    ImportMetrics getMetrics();
+
+    /**
+     * Returns the dry run path of a finished dry run job.
+     */
+    String getDryRunPath();
+
+    Calendar getSubmitted();
+    Calendar getStarted();
+    Calendar getFinished();
+}
@@ -0,0 +1,11 @@
+package com.northpointdigital.basics.dataimport;
+
+/**
+ * Receives the progress of an import. Called on the thread that writes the
+ * import, so implementations should return quickly.
+ */
+public interface ImportListener {
+    void batchSaved(ImportMetrics metrics);
+    void lineFailed(long lineNumber, String error);
+    void importFinished(ImportMetrics metrics);
+}
@@ -0,0 +1,139 @@
+package com.northpointdigital.basics.dataimport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters of one import run. Lines are parsed and transformed on
+ * several threads, so all counters are thread-safe.
+ */
+public class ImportMetrics implements ImportMetricsMBean {
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final String destPath;
+    private final long batchSize;
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong rowsFailed = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final AtomicLong scriptNanos = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final AtomicLong saveNanos = new AtomicLong();
+    private final AtomicLong savedBatches = new AtomicLong();
+    private volatile long startTime;
+    private volatile long endTime;
+
+    public ImportMetrics(String destPath, long batchSize) {
+        this.destPath = destPath;
+        this.batchSize = batchSize;
+    }
+
+    public void start() {
+        startTime = System.currentTimeMillis();
+        endTime = 0;
+    }
+
+    public void finish() {
+        endTime = System.currentTimeMillis();
+    }
+
+    public void addRowRead() {
+        rowsRead.incrementAndGet();
+    }
+
+    public void addRowWritten() {
+        rowsWritten.incrementAndGet();
+    }
+
+    public void addRowFailed() {
+        rowsFailed.incrementAndGet();
+    }
+
+    public void addBatchSaved() {
+        savedBatches.incrementAndGet();
+    }
+
+    public void addParseTime(long nanos) {
+        parseNanos.addAndGet(nanos);
+    }
+
+    public void addScriptTime(long nanos) {
+        scriptNanos.addAndGet(nanos);
+    }
+
+    public void addWriteTime(long nanos) {
+        writeNanos.addAndGet(nanos);
+    }
+
+    public void addSaveTime(long nanos) {
+        saveNanos.addAndGet(nanos);
+    }
+
+    public String getDestPath() {
+        return destPath;
+    }
+
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    public long getRowsFailed() {
+        return rowsFailed.get();
+    }
+
+    public double getRowsPerSecond() {
+        long elapsed = getElapsedTime();
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (getRowsWritten() + getRowsFailed()) * 1000.0 / elapsed;
+    }
+
+    public long getParseTime() {
+        return parseNanos.get() / NANOS_PER_MILLI;
+    }
+
+    public long getScriptTime() {
+        return scriptNanos.get() / NANOS_PER_MILLI;
+    }
+
+    public long getWriteTime() {
+        return writeNanos.get() / NANOS_PER_MILLI;
+    }
+
+    public long getSaveTime() {
+        return saveNanos.get() / NANOS_PER_MILLI;
+    }
+
+    public long getCurrentBatch() {
+        return savedBatches.get() + 1;
+    }
+
+    public long getBatchSize() {
+        return batchSize;
+    }
+
+    public long getElapsedTime() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return (endTime > 0 ? endTime : System.currentTimeMillis())
+                - startTime;
+    }
+
+    public boolean isRunning() {
+        return startTime > 0 && endTime == 0;
+    }
+
+    public String toString() {
+        return "read: " + getRowsRead() + ", written: " + getRowsWritten()
+                + ", failed: " + getRowsFailed() + ", rows/s: "
+                + Math.round(getRowsPerSecond()) + ", parse: "
+                + getParseTime() + "ms, script: " + getScriptTime()
+                + "ms, write: " + getWriteTime() + "ms, save: "
+                + getSaveTime() + "ms";
+    }
+}
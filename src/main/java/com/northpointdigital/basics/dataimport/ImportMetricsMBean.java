@@ -0,0 +1,20 @@
+package com.northpointdigital.basics.dataimport;
+
+/**
+ * JMX view of a running import. Times are in milliseconds.
+ */
+public interface ImportMetricsMBean {
+    String getDestPath();
+    long getRowsRead();
+    long getRowsWritten();
+    long getRowsFailed();
+    double getRowsPerSecond();
+    long getParseTime();
+    long getScriptTime();
+    long getWriteTime();
+    long getSaveTime();
+    long getCurrentBatch();
+    long getBatchSize();
+    long getElapsedTime();
+    boolean isRunning();
+}
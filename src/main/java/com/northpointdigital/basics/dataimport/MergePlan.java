@@ -0,0 +1,102 @@
+package com.northpointdigital.basics.dataimport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a merge would do, worked out without writing anything: the source
+ * subtrees to copy with their node count and size, the existing nodes to
+ * descend into, the properties to write, and an estimated duration. Only
+ * the first {@link #MAX_LISTED_PATHS} paths of each kind are listed; the
+ * counts are always complete.
+ */
+public class MergePlan {
+    public static final int MAX_LISTED_PATHS = 1000;
+
+    private final List<String> copyPaths = new ArrayList<String>();
+    private final List<String> descendPaths = new ArrayList<String>();
+    private long copySubtrees;
+    private long copyNodes;
+    private long descendNodes;
+    private long propertiesToWrite;
+    private long bytes;
+    private long estimatedMillis;
+
+    /**
+     * Returns the source paths of the subtrees to copy.
+     */
+    public List<String> getCopyPaths() {
+        return Collections.unmodifiableList(copyPaths);
+    }
+
+    /**
+     * Returns the source paths of the nodes that exist in the destination
+     * and are descended into.
+     */
+    public List<String> getDescendPaths() {
+        return Collections.unmodifiableList(descendPaths);
+    }
+
+    public long getCopySubtrees() {
+        return copySubtrees;
+    }
+
+    /**
+     * Returns the number of nodes to copy, including all descendants.
+     */
+    public long getCopyNodes() {
+        return copyNodes;
+    }
+
+    public long getDescendNodes() {
+        return descendNodes;
+    }
+
+    public long getPropertiesToWrite() {
+        return propertiesToWrite;
+    }
+
+    /**
+     * Returns the size of the property values to copy or write.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getEstimatedMillis() {
+        return estimatedMillis;
+    }
+
+    public void addCopy(String path, long nodes, long bytes) {
+        if (copyPaths.size() < MAX_LISTED_PATHS) {
+            copyPaths.add(path);
+        }
+        copySubtrees++;
+        copyNodes += nodes;
+        this.bytes += bytes;
+    }
+
+    public void addDescend(String path) {
+        if (descendPaths.size() < MAX_LISTED_PATHS) {
+            descendPaths.add(path);
+        }
+        descendNodes++;
+    }
+
+    public void addPropertyToWrite(long bytes) {
+        propertiesToWrite++;
+        this.bytes += bytes;
+    }
+
+    public void setEstimatedMillis(long estimatedMillis) {
+        this.estimatedMillis = estimatedMillis;
+    }
+
+    public String toString() {
+        return "subtrees to copy: " + copySubtrees + " (" + copyNodes
+                + " nodes), nodes to descend: " + descendNodes
+                + ", properties to write: " + propertiesToWrite + ", bytes: "
+                + bytes + ", estimated time: " + estimatedMillis + " ms";
+    }
+}
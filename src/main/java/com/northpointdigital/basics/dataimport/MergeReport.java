@@ -0,0 +1,127 @@
+package com.northpointdigital.basics.dataimport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of a merge: nodes copied (including their descendants), existing
+ * nodes descended into, properties of existing nodes written, left
+ * unchanged or kept because the destination wins, and the errors of the
+ * subtrees that could not be merged. The top-level subtrees are listed as
+ * committed (fully saved) or failed (possibly partly saved). Safe to update
+ * from several merge workers.
+ */
+public class MergeReport {
+    private final AtomicLong nodesCopied = new AtomicLong();
+    private final AtomicLong nodesDescended = new AtomicLong();
+    private final AtomicLong propertiesWritten = new AtomicLong();
+    private final AtomicLong propertiesUnchanged = new AtomicLong();
+    private final AtomicLong propertiesKept = new AtomicLong();
+    private final List<String> errors = new ArrayList<String>();
+    private final List<String> committedSubtrees = new ArrayList<String>();
+    private final List<String> failedSubtrees = new ArrayList<String>();
+
+    public long getNodesCopied() {
+        return nodesCopied.get();
+    }
+
+    public long getNodesDescended() {
+        return nodesDescended.get();
+    }
+
+    public long getPropertiesWritten() {
+        return propertiesWritten.get();
+    }
+
+    public long getPropertiesUnchanged() {
+        return propertiesUnchanged.get();
+    }
+
+    public long getPropertiesKept() {
+        return propertiesKept.get();
+    }
+
+    public String[] getErrors() {
+        synchronized (errors) {
+            return errors.toArray(new String[errors.size()]);
+        }
+    }
+
+    /**
+     * Returns the source paths of the top-level subtrees that are completely
+     * merged and saved.
+     */
+    public List<String> getCommittedSubtrees() {
+        synchronized (committedSubtrees) {
+            return new ArrayList<String>(committedSubtrees);
+        }
+    }
+
+    /**
+     * Returns the source paths of the top-level subtrees that failed or were
+     * stopped. Batches saved before the failure stay in the destination.
+     */
+    public List<String> getFailedSubtrees() {
+        synchronized (failedSubtrees) {
+            return new ArrayList<String>(failedSubtrees);
+        }
+    }
+
+    public void addNodesCopied(long count) {
+        nodesCopied.addAndGet(count);
+    }
+
+    public void addNodeDescended() {
+        nodesDescended.incrementAndGet();
+    }
+
+    public void addPropertyWritten() {
+        propertiesWritten.incrementAndGet();
+    }
+
+    public void addPropertyUnchanged() {
+        propertiesUnchanged.incrementAndGet();
+    }
+
+    public void addPropertyKept() {
+        propertiesKept.incrementAndGet();
+    }
+
+    /**
+     * Adds the counts of another report, e.g. those of a saved batch. Errors
+     * and subtrees are not added.
+     */
+    public void addCounts(MergeReport other) {
+        nodesCopied.addAndGet(other.getNodesCopied());
+        nodesDescended.addAndGet(other.getNodesDescended());
+        propertiesWritten.addAndGet(other.getPropertiesWritten());
+        propertiesUnchanged.addAndGet(other.getPropertiesUnchanged());
+        propertiesKept.addAndGet(other.getPropertiesKept());
+    }
+
+    public void addError(String error) {
+        synchronized (errors) {
+            errors.add(error);
+        }
+    }
+
+    public void addCommittedSubtree(String path) {
+        synchronized (committedSubtrees) {
+            committedSubtrees.add(path);
+        }
+    }
+
+    public void addFailedSubtree(String path) {
+        synchronized (failedSubtrees) {
+            failedSubtrees.add(path);
+        }
+    }
+
+    public String toString() {
+        return "nodes copied: " + nodesCopied + ", descended: "
+                + nodesDescended + ", properties written: "
+                + propertiesWritten + ", unchanged: " + propertiesUnchanged
+                + ", kept: " + propertiesKept + ", errors: " + getErrors().length;
+    }
+}
@@ -4,5 +4,39 @@ import org.apache.sling.api.resource.ResourceResolver;
 import com.northpointdigital.basics.exception.NorthpointException;
 
 public interface NodeMerger {
+    /**
+     * What happens to the properties of a node that exists in both trees.
+     */
+    enum PropertyPolicy {
+        /** Properties that differ are overwritten with the source values. */
+        SOURCE_WINS,
+        /** Only properties missing in the destination are written. */
+        DEST_WINS,
+        /** Properties of existing nodes are left alone. */
+        SKIP
+    }
+
     String[] merge(String origPath, String destPath, ResourceResolver rr) throws NorthpointException;
+
+    /**
+     * Copies the nodes missing in the destination and merges the properties
+     * of the nodes present in both trees, writing only those that differ.
+     */
+    MergeReport merge(String origPath, String destPath, ResourceResolver rr, PropertyPolicy policy)
+            throws NorthpointException;
+
+    /**
+     * Continues a merge that failed or was stopped: the subtrees the previous
+     * report lists as committed are skipped, the others are merged again.
+     */
+    MergeReport resume(String origPath, String destPath, ResourceResolver rr, PropertyPolicy policy,
+            MergeReport previous) throws NorthpointException;
+
+    /**
+     * Works out what {@link #merge(String, String, ResourceResolver, PropertyPolicy)}
+     * would do, without writing anything. The duration is estimated from
+     * the throughput of the previous merges.
+     */
+    MergePlan plan(String origPath, String destPath, ResourceResolver rr, PropertyPolicy policy)
+            throws NorthpointException;
 }
@@ -0,0 +1,15 @@
+package com.northpointdigital.basics.dataimport;
+
+/**
+ * JMX view of the collector of old dry run trees below
+ * {@link DataImporter#TMP_ROOT}. Counts are since the service started.
+ */
+public interface TmpTreeCollectorMBean {
+    long getTreesRemoved();
+    long getNodesRemoved();
+    long getLastRunTreesRemoved();
+    long getLastRunNodesRemoved();
+    long getLastRunTime();
+    long getMaxAgeHours();
+    String getLastError();
+}
@@ -0,0 +1,1055 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.mozilla.javascript.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrUtil;
+import com.northpointdigital.basics.dataimport.DataImporter;
+import com.northpointdigital.basics.dataimport.DeltaReport;
+import com.northpointdigital.basics.dataimport.ImportListener;
+import com.northpointdigital.basics.dataimport.ImportMetrics;
+import com.northpointdigital.basics.exception.NorthpointException;
+
+/**
+ * Imports lines of column values into nodes, as described by an import conf
+ * node (fields, nameGen, parent-fields and defaultFields). Subclasses only
+ * turn their input format into lines of columns, in the order of the conf
+ * fields.
+ */
+public abstract class AbstractDataImporter implements DataImporter {
+    public static final String DEFAULT_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SX";
+    public static final long DEFAULT_BATCH_SIZE = 1000;
+    public static final String HASH_PROPERTY = "importHash";
+
+    private static Logger log = LoggerFactory
+            .getLogger(AbstractDataImporter.class);
+    private static final AtomicLong importCount = new AtomicLong();
+
+    private Reader reader;
+    private ResourceResolver rr;
+    private Session session;
+    private String confPath;
+    private String destPath;
+
+    private ImportConf conf;
+    private List<String[]> fields;
+    private List<ImportScript> fieldScripts;
+    private List<FieldConverter> fieldConverters;
+    private List<Object[]> defaultFields;
+    private List<Object[]> parentFields;
+    private String primaryType;
+    private boolean isNameFromField;
+    private String nameFromField;
+    private ImportScript nameScript;
+    private Charset charset;
+    private char separator;
+    private char quote;
+    private long batchSize;
+    private int threads;
+    private boolean delta;
+    private boolean deltaRemove;
+    private DeltaReport deltaReport;
+    private Set<String> deltaPaths;
+    private ImportPathCache pathCache;
+    private final MultiValueBuffer multiValues = new MultiValueBuffer();
+    private ImportMetrics metrics;
+    private List<ImportListener> listeners =
+            new CopyOnWriteArrayList<ImportListener>();
+    private String dryRunPath;
+    private boolean dryRunSuccess;
+    private String checkpointFirstLine;
+    private Set<String> validatedNames;
+    private String firstLineHash;
+
+    protected AbstractDataImporter(Reader reader, ResourceResolver rr,
+            String confPath, String destPath, char defaultSeparator)
+            throws NorthpointException {
+        this(reader, rr, confPath, destPath, defaultSeparator, null);
+    }
+
+    /**
+     * @param defaultSeparator the column separator of the format, used if the
+     *        conf does not set one
+     * @param confCache the cache of compiled confs, or null to compile the
+     *        conf for this importer only
+     */
+    protected AbstractDataImporter(Reader reader, ResourceResolver rr,
+            String confPath, String destPath, char defaultSeparator,
+            ImportConfCache confCache) throws NorthpointException {
+        this.reader = reader;
+        this.separator = defaultSeparator;
+        this.confPath = confPath;
+        this.destPath = destPath;
+        this.dryRunPath = null;
+        this.rr = rr;
+        this.session = rr.adaptTo(Session.class);
+        this.dryRunSuccess = false;
+
+        initConf(confCache);
+    }
+
+    /**
+     * Returns the lines of the input. Each line holds the columns in the
+     * order of the conf fields. Called once per import run.
+     */
+    protected abstract Iterator<String[]> readLines()
+            throws NorthpointException;
+
+    private void initConf(ImportConfCache confCache)
+            throws NorthpointException {
+        if (confCache != null) {
+            conf = confCache.getConf(rr, confPath);
+        } else {
+            Node confNode = rr.resolve(confPath).adaptTo(Node.class);
+            if (confNode == null) {
+                throw new NorthpointException(null, "Conf path not found: "
+                        + confPath);
+            }
+            conf = new ImportConf(confNode);
+        }
+
+        fields = conf.getFields();
+        fieldScripts = conf.getFieldScripts();
+        fieldConverters = conf.getFieldConverters();
+        defaultFields = conf.getDefaultFields();
+        parentFields = conf.getParentFields();
+        primaryType = conf.getPrimaryType();
+        isNameFromField = conf.isNameFromField();
+        nameFromField = conf.getNameFromField();
+        nameScript = conf.getNameScript();
+        charset = conf.getCharset();
+        if (conf.getSeparator() != null) {
+            separator = conf.getSeparator().charValue();
+        }
+        quote = conf.getQuote();
+        batchSize = conf.getBatchSize();
+        threads = conf.getThreads();
+        delta = conf.isDelta();
+        deltaRemove = conf.isDeltaRemove();
+    }
+
+    public List<String[]> getFields() {
+        return this.fields;
+    }
+
+    protected Reader getReader() {
+        return reader;
+    }
+
+    protected Charset getCharset() {
+        return charset;
+    }
+
+    protected char getSeparator() {
+        return separator;
+    }
+
+    protected char getQuote() {
+        return quote;
+    }
+
+    public String getDryRunPath() throws NorthpointException {
+        if (this.dryRunPath == null) {
+            throw new NorthpointException(null, "Dry run never executed.");
+        }
+        return this.dryRunPath;
+    }
+
+    public String[] doDryRun() throws NorthpointException {
+        // Committing only moves new nodes, so updates of existing nodes
+        // could not be dry run
+        if (delta) {
+            throw new NorthpointException(null, "Delta imports cannot be dry "
+                    + "run: " + confPath + ". Validate the file instead.");
+        }
+        this.dryRunSuccess = true;
+        List<String> errors = new ArrayList<String>();
+
+        // Generate tmp folder
+        String tmpName = Long.toString(System.currentTimeMillis()) + "-"
+                + Integer.toString(new Random().nextInt(1000));
+        this.dryRunPath = DataImporter.TMP_ROOT + "/" + tmpName;
+        try {
+            Node tmpRootNode = rr.resolve(DataImporter.TMP_ROOT).adaptTo(
+                    Node.class);
+            if (tmpRootNode == null) {
+                tmpRootNode = JcrUtil.createPath(DataImporter.TMP_ROOT,
+                        "nt:unstructured", session);
+            }
+            // Typed like the destination, so it can be moved there as a whole
+            tmpRootNode.addNode(tmpName, primaryType);
+        } catch (RepositoryException e) {
+            this.dryRunSuccess = false;
+            throw new NorthpointException(e, "Cannot create tmp folder: "
+                    + dryRunPath);
+        }
+
+        // A dry run stopped half way must never be committed
+        try {
+            importLines(dryRunPath, null, 0, false, errors);
+        } catch (NorthpointException e) {
+            this.dryRunSuccess = false;
+            throw e;
+        } catch (RuntimeException e) {
+            this.dryRunSuccess = false;
+            throw e;
+        }
+        if (!errors.isEmpty()) {
+            this.dryRunSuccess = false;
+        }
+        return errors.toArray(new String[errors.size()]);
+    }
+
+    public String[] doValidate() throws NorthpointException {
+        List<String> errors = new ArrayList<String>();
+        validatedNames = new HashSet<String>();
+        try {
+            importLines(destPath, null, 0, true, errors);
+        } finally {
+            validatedNames = null;
+        }
+        return errors.toArray(new String[errors.size()]);
+    }
+
+    public String[] doImport() throws NorthpointException {
+        List<String> errors = new ArrayList<String>();
+
+        // Resume after the last committed line of a previous failed run
+        String checkpointPath = getCheckpointPath();
+        long committedLineCount = readCheckpoint(checkpointPath);
+        if (committedLineCount > 0) {
+            log.info("Resuming import into " + destPath + " after line "
+                    + committedLineCount);
+        }
+
+        if (delta) {
+            deltaReport = new DeltaReport();
+            deltaPaths = deltaRemove ? new HashSet<String>() : null;
+        }
+        importLines(destPath, checkpointPath, committedLineCount, false,
+                errors);
+        if (deltaRemove) {
+            if (committedLineCount > 0 || !errors.isEmpty()) {
+                log.warn("Not removing nodes missing from the import into "
+                        + destPath + ": the import was resumed or has errors.");
+            } else {
+                removeMissingNodes();
+            }
+        }
+        removeCheckpoint(checkpointPath);
+        if (delta) {
+            log.info("Delta import into " + destPath + ": " + deltaReport);
+        }
+        return errors.toArray(new String[errors.size()]);
+    }
+
+    public void discardCheckpoint() throws NorthpointException {
+        removeCheckpoint(getCheckpointPath());
+    }
+
+    public ImportMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void addImportListener(ImportListener listener) {
+        listeners.add(listener);
+    }
+
+    public DeltaReport getDeltaReport() {
+        return deltaReport;
+    }
+
+    /**
+     * Removes the imported nodes below the destination path (those carrying
+     * an import hash) that no line of this import matched.
+     */
+    private void removeMissingNodes() throws NorthpointException {
+        try {
+            LinkedList<Node> nodes = new LinkedList<Node>();
+            nodes.add(session.getNode(destPath));
+            long removedCount = 0;
+            while (!nodes.isEmpty()) {
+                NodeIterator iter = nodes.poll().getNodes();
+                while (iter.hasNext()) {
+                    Node node = iter.nextNode();
+                    if (node.getName().equals("jcr:content")) {
+                        continue;
+                    }
+                    Node contentNode = getContentNode(node);
+                    if (contentNode != null
+                            && contentNode.hasProperty(HASH_PROPERTY)
+                            && !deltaPaths.contains(node.getPath())) {
+                        node.remove();
+                        deltaReport.addRemoved();
+                        if (++removedCount % batchSize == 0) {
+                            session.save();
+                        }
+                    } else {
+                        nodes.add(node);
+                    }
+                }
+            }
+            session.save();
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e,
+                    "Repository Exception while removing nodes below "
+                            + destPath);
+        }
+    }
+
+    private Node getContentNode(Node node) throws RepositoryException {
+        if (primaryType.equals("cq:Page")) {
+            return node.hasNode("jcr:content") ? node.getNode("jcr:content")
+                    : null;
+        }
+        return node;
+    }
+
+    public String[] commitDryRun() throws NorthpointException {
+        if (this.dryRunPath == null) {
+            throw new NorthpointException(null, "Dry run never executed.");
+        }
+        if (!this.dryRunSuccess) {
+            throw new NorthpointException(null, "Dry run has errors: "
+                    + dryRunPath);
+        }
+
+        List<String> errors = new ArrayList<String>();
+        try {
+            if (!session.nodeExists(destPath)) {
+                // A new destination is the dry run folder, renamed
+                String parentPath = destPath.substring(0,
+                        destPath.lastIndexOf('/'));
+                if (parentPath.length() > 0) {
+                    JcrUtil.createPath(parentPath, primaryType, session);
+                    session.save();
+                }
+                session.getWorkspace().move(dryRunPath, destPath);
+            } else {
+                mergeDryRun(errors);
+            }
+        } catch (RepositoryException e) {
+            try {
+                session.refresh(false);
+            } catch (RepositoryException re) {
+                log.error("Cannot discard pending changes: " + re.getMessage());
+            }
+            throw new NorthpointException(e,
+                    "Repository Exception while committing dry run: "
+                            + dryRunPath + ". Commit again to resume.");
+        }
+        if (errors.isEmpty()) {
+            this.dryRunPath = null;
+            this.dryRunSuccess = false;
+        }
+        return errors.toArray(new String[errors.size()]);
+    }
+
+    /**
+     * Moves every node of the dry run that does not exist in the destination
+     * yet, saving every <code>batchSize</code> moves. Where the destination
+     * already has a node, descends and moves its missing children. If a node
+     * cannot be moved, the dry run tree is kept with the nodes that are left,
+     * so the commit can be run again.
+     */
+    private void mergeDryRun(List<String> errors) throws RepositoryException {
+        LinkedList<String> paths = new LinkedList<String>();
+        addChildPaths(dryRunPath, paths);
+        long moveCount = 0;
+        while (!paths.isEmpty()) {
+            String path = paths.poll();
+            String targetPath = destPath + path.substring(dryRunPath.length());
+            if (session.nodeExists(targetPath)) {
+                addChildPaths(path, paths);
+                continue;
+            }
+            try {
+                session.move(path, targetPath);
+            } catch (RepositoryException e) {
+                errors.add("Cannot move " + path + " to " + targetPath + ": "
+                        + e.getMessage());
+                continue;
+            }
+            if (++moveCount % batchSize == 0) {
+                session.save();
+            }
+        }
+
+        if (errors.isEmpty()) {
+            // Whatever is left was already present in the destination
+            session.getNode(dryRunPath).remove();
+        }
+        session.save();
+    }
+
+    private void addChildPaths(String path, List<String> paths)
+            throws RepositoryException {
+        NodeIterator iter = session.getNode(path).getNodes();
+        while (iter.hasNext()) {
+            paths.add(iter.nextNode().getPath());
+        }
+    }
+
+    /**
+     * Transforms the lines after <code>committedLineCount</code> and writes
+     * them below <code>rootPath</code>, saving every <code>batchSize</code>
+     * lines. With more than one configured thread, the lines are transformed
+     * in parallel while this thread stays the only one using the session.
+     * If <code>validateOnly</code> is set, the rows are checked against the
+     * destination path instead and nothing is written.
+     */
+    private void importLines(String rootPath, String checkpointPath,
+            long committedLineCount, boolean validateOnly, List<String> errors)
+            throws NorthpointException {
+        try {
+            pathCache = new ImportPathCache(session, destPath);
+            multiValues.clear();
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e, "Cannot read destination path: "
+                    + destPath);
+        }
+
+        Iterator<String[]> lines = readLines();
+        if (checkpointPath != null) {
+            lines = checkFirstLine(lines, committedLineCount);
+        }
+
+        metrics = new ImportMetrics(destPath, batchSize);
+        metrics.start();
+        ObjectName mbeanName = registerMetrics();
+        ImportPipeline rows = new ImportPipeline(lines,
+                committedLineCount, threads,
+                new ImportPipeline.RowTransformer() {
+                    public ImportRow transform(long lineNumber, String[] cols) {
+                        return transformLine(lineNumber, cols);
+                    }
+                }, metrics);
+
+        long lineCount = committedLineCount;
+        long savedLineCount = committedLineCount;
+        try {
+            // A cancel or a read error ends the import the same way with one
+            // thread or many: the lines up to the last good one are saved
+            NorthpointException stop = null;
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    stop = new NorthpointException(null,
+                            "Import cancelled after line " + lineCount);
+                    break;
+                }
+                ImportRow row;
+                try {
+                    if (!rows.hasNext()) {
+                        break;
+                    }
+                    row = rows.next();
+                } catch (IllegalStateException e) {
+                    stop = new NorthpointException(e,
+                            "Import stopped after line " + lineCount + ": "
+                                    + e.getMessage());
+                    break;
+                }
+                lineCount = row.getLineNumber();
+                long start = System.nanoTime();
+                try {
+                    if (row.getError() != null) {
+                        throw new NorthpointException(null, row.getError());
+                    }
+                    if (validateOnly) {
+                        validateRow(row);
+                    } else {
+                        writeRow(row, rootPath);
+                    }
+                    metrics.addRowWritten();
+                } catch (NorthpointException e) {
+                    metrics.addRowFailed();
+                    errors.add("Error on line: " + lineCount + ": "
+                            + e.getReason());
+                    for (ImportListener listener : listeners) {
+                        listener.lineFailed(lineCount, e.getReason());
+                    }
+                }
+                metrics.addWriteTime(System.nanoTime() - start);
+
+                // Keep the transient space bounded
+                if (!validateOnly && lineCount - savedLineCount >= batchSize) {
+                    saveBatch(checkpointPath, lineCount);
+                    savedLineCount = lineCount;
+                }
+            }
+            if (stop == null && rows.getReadError() != null) {
+                stop = new NorthpointException(rows.getReadError(),
+                        "IO Exception while importing after line " + lineCount);
+            }
+            if (!validateOnly) {
+                // A cancelled save would fail on the interrupt
+                boolean interrupted = Thread.interrupted();
+                try {
+                    saveBatch(checkpointPath, stop != null ? lineCount
+                            : Math.max(lineCount, rows.getLineCount()));
+                } finally {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            if (stop != null) {
+                throw stop;
+            }
+        } catch (RuntimeException e) {
+            if (!validateOnly) {
+                discardBatch();
+            }
+            throw e;
+        } finally {
+            rows.close();
+            metrics.finish();
+            unregisterMetrics(mbeanName);
+            log.info("Import into " + destPath + " finished. " + metrics);
+            for (ImportListener listener : listeners) {
+                listener.importFinished(metrics);
+            }
+        }
+    }
+
+    /**
+     * Publishes the metrics of the running import as a JMX MBean.
+     */
+    private ObjectName registerMetrics() {
+        try {
+            ObjectName name = new ObjectName(
+                    "com.northpointdigital.basics.dataimport:type=Import,id="
+                            + importCount.incrementAndGet() + ",destPath="
+                            + ObjectName.quote(destPath));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    name);
+            return name;
+        } catch (JMException e) {
+            log.warn("Cannot register import metrics MBean: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void unregisterMetrics(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Cannot unregister import metrics MBean: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the scripts and conversions of one line. Called from the worker
+     * threads of a parallel import, so it must not touch the session.
+     */
+    private ImportRow transformLine(long lineNumber, String[] cols) {
+        Context.enter();
+        try {
+            List<Object> result = readLine(cols);
+            // The name the node is stored under, for all lookups of the row
+            String nodeName = toNodePath(getName(cols));
+            return new ImportRow(lineNumber, nodeName, result,
+                    delta ? hashLine(cols) : null);
+        } catch (NorthpointException e) {
+            return ImportRow.failed(lineNumber, e.getReason());
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * Hashes the first line, which identifies the input of a checkpoint. A
+     * resumed import must read the same first line as the run that stored
+     * the checkpoint, or it would skip lines of another file.
+     */
+    private Iterator<String[]> checkFirstLine(final Iterator<String[]> lines,
+            long committedLineCount) throws NorthpointException {
+        firstLineHash = null;
+        if (!lines.hasNext()) {
+            return lines;
+        }
+        final String[] first = lines.next();
+        firstLineHash = hashLine(first);
+        if (committedLineCount > 0 && checkpointFirstLine != null
+                && !checkpointFirstLine.equals(firstLineHash)) {
+            throw new NorthpointException(null, "Unfinished import into "
+                    + destPath + " was started with another file. Discard "
+                    + "its checkpoint to start over.");
+        }
+        return new Iterator<String[]>() {
+            private boolean firstRead;
+
+            public boolean hasNext() {
+                return !firstRead || lines.hasNext();
+            }
+
+            public String[] next() {
+                if (!firstRead) {
+                    firstRead = true;
+                    return first;
+                }
+                return lines.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private String hashLine(String[] cols) throws NorthpointException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (String col : cols) {
+                if (col != null) {
+                    digest.update(col.getBytes("UTF-8"));
+                }
+                digest.update((byte) 0);
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new NorthpointException(e, "Cannot hash line.");
+        } catch (UnsupportedEncodingException e) {
+            throw new NorthpointException(e, "Cannot hash line.");
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private void writeRow(ImportRow row, String rootPath)
+            throws NorthpointException {
+        String actualPath = destPath + "/" + row.getName();
+        boolean isDelta = deltaReport != null && rootPath.equals(destPath);
+        try {
+            if (pathCache.destExists(row.getName())) {
+                if (!isDelta) {
+                    throw new NorthpointException(null,
+                            "Node already exists: " + actualPath);
+                }
+                updateNode(toNodePath(actualPath), row);
+                return;
+            }
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e, "Cannot check path: "
+                    + actualPath);
+        }
+
+        Node node = saveNode(rootPath + "/" + row.getName(), row.getValues());
+        if (isDelta) {
+            try {
+                node.setProperty(HASH_PROPERTY, row.getHash());
+            } catch (RepositoryException e) {
+                throw new NorthpointException(e,
+                        "Repository Exception while setting property: "
+                                + HASH_PROPERTY);
+            }
+            deltaReport.addCreated();
+            if (deltaPaths != null) {
+                deltaPaths.add(toNodePath(actualPath));
+            }
+        }
+        if (rootPath.equals(destPath)) {
+            try {
+                pathCache.addDest(row.getName());
+            } catch (RepositoryException e) {
+                throw new NorthpointException(e, "Cannot check path: "
+                        + actualPath);
+            }
+        }
+    }
+
+    /**
+     * Checks a row like {@link #writeRow} would in {@link #doImport}, without
+     * writing: the name must be usable and must not collide with an existing
+     * node or an earlier line, unless the import is a delta import. A dry run
+     * does not fail a name repeated within the file but stores the line under
+     * a unique name, so the error for a repeat says so.
+     */
+    private void validateRow(ImportRow row) throws NorthpointException {
+        String name = row.getName();
+        String actualPath = destPath + "/" + name;
+        if (name.isEmpty() || name.startsWith("/") || name.endsWith("/")
+                || name.contains("//")) {
+            throw new NorthpointException(null, "Invalid node name: \""
+                    + row.getName() + "\"");
+        }
+        if (delta) {
+            // Existing and repeated names are updates
+            return;
+        }
+        try {
+            if (pathCache.destExists(name)) {
+                throw new NorthpointException(null, "Node already exists: "
+                        + actualPath);
+            }
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e, "Cannot check path: "
+                    + actualPath);
+        }
+        if (!validatedNames.add(name)) {
+            throw new NorthpointException(null, "Node name repeats an earlier "
+                    + "line: " + actualPath + ". An import fails this line; a "
+                    + "dry run stores it under a unique name.");
+        }
+    }
+
+    /**
+     * Saves the pending lines, after writing the multi values collected
+     * during the batch. If a checkpoint path is given, the number of
+     * processed lines is stored with the same save, so the checkpoint never
+     * gets ahead of the committed nodes.
+     */
+    private void saveBatch(String checkpointPath, long lineCount)
+            throws NorthpointException {
+        try {
+            if (checkpointPath != null) {
+                Node checkpointNode = JcrUtil.createPath(checkpointPath,
+                        "nt:unstructured", session);
+                checkpointNode.setProperty("confPath", confPath);
+                checkpointNode.setProperty("destPath", destPath);
+                checkpointNode.setProperty("lineCount", lineCount);
+                checkpointNode.setProperty("firstLine", firstLineHash);
+                checkpointNode.setProperty("lastModified",
+                        Calendar.getInstance());
+            }
+            long start = System.nanoTime();
+            multiValues.flush(session.getValueFactory());
+            this.session.save();
+            if (metrics != null) {
+                metrics.addSaveTime(System.nanoTime() - start);
+                metrics.addBatchSaved();
+                for (ImportListener listener : listeners) {
+                    listener.batchSaved(metrics);
+                }
+            }
+        } catch (RepositoryException e) {
+            discardBatch();
+            throw new NorthpointException(e,
+                    "Repository Exception while saving nodes up to line "
+                            + lineCount + ". Run the import again to resume.");
+        }
+    }
+
+    /**
+     * Drops the unsaved lines from the session and the caches.
+     */
+    private void discardBatch() {
+        this.dryRunSuccess = false;
+        multiValues.clear();
+        if (pathCache != null) {
+            pathCache.clear();
+        }
+        try {
+            this.session.refresh(false);
+        } catch (RepositoryException re) {
+            log.error("Cannot discard pending changes: " + re.getMessage());
+        }
+    }
+
+    /**
+     * Returns the checkpoint path of the destination. The readable name can
+     * be the same for different paths ("/a_b" and "/a/b"), so a hash of the
+     * path is appended.
+     */
+    private String getCheckpointPath() throws NorthpointException {
+        try {
+            String hash = toHex(MessageDigest.getInstance("MD5").digest(
+                    destPath.getBytes("UTF-8")));
+            return DataImporter.CHECKPOINT_ROOT + "/"
+                    + JcrUtil.createValidName(destPath) + "-"
+                    + hash.substring(0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new NorthpointException(e, "Cannot hash path.");
+        } catch (UnsupportedEncodingException e) {
+            throw new NorthpointException(e, "Cannot hash path.");
+        }
+    }
+
+    /**
+     * Returns the number of lines committed by an unfinished import into the
+     * destination, and remembers the hash of the first line it read. Fails
+     * if the checkpoint belongs to another conf or destination.
+     */
+    private long readCheckpoint(String checkpointPath)
+            throws NorthpointException {
+        checkpointFirstLine = null;
+        try {
+            Node checkpointNode = rr.resolve(checkpointPath).adaptTo(
+                    Node.class);
+            if (checkpointNode == null
+                    || !checkpointNode.hasProperty("lineCount")) {
+                return 0;
+            }
+            if (checkpointNode.hasProperty("destPath")
+                    && !destPath.equals(checkpointNode.getProperty("destPath")
+                            .getString())) {
+                throw new NorthpointException(null, "Checkpoint "
+                        + checkpointPath + " belongs to an import into "
+                        + checkpointNode.getProperty("destPath").getString());
+            }
+            if (checkpointNode.hasProperty("confPath")
+                    && !confPath.equals(checkpointNode.getProperty("confPath")
+                            .getString())) {
+                throw new NorthpointException(null, "Unfinished import into "
+                        + destPath + " uses another configuration: "
+                        + checkpointNode.getProperty("confPath").getString()
+                        + ". Discard its checkpoint to start over.");
+            }
+            if (checkpointNode.hasProperty("firstLine")) {
+                checkpointFirstLine = checkpointNode.getProperty("firstLine")
+                        .getString();
+            }
+            return checkpointNode.getProperty("lineCount").getLong();
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e, "Cannot read import checkpoint: "
+                    + checkpointPath);
+        }
+    }
+
+    private void removeCheckpoint(String checkpointPath)
+            throws NorthpointException {
+        try {
+            if (session.nodeExists(checkpointPath)) {
+                session.getNode(checkpointPath).remove();
+                session.save();
+            }
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e,
+                    "Cannot remove import checkpoint: " + checkpointPath);
+        }
+    }
+
+    /**
+     * Rewrites the properties of an existing node if its line changed since
+     * the last import.
+     */
+    private void updateNode(String path, ImportRow row)
+            throws NorthpointException {
+        if (deltaPaths != null) {
+            deltaPaths.add(path);
+        }
+        try {
+            Node node = getContentNode(session.getNode(path));
+            if (node == null) {
+                throw new NorthpointException(null, "Node already exists: "
+                        + path);
+            }
+            if (node.hasProperty(HASH_PROPERTY)
+                    && node.getProperty(HASH_PROPERTY).getString()
+                            .equals(row.getHash())) {
+                deltaReport.addUnchanged();
+                return;
+            }
+
+            for (Object[] field : defaultFields) {
+                saveProperty(node, (String) field[0], field[2],
+                        (FieldConverter) field[1]);
+            }
+            List<Object> values = row.getValues();
+            for (int i = 0; i < fields.size(); i++) {
+                String name = fields.get(i)[0];
+                FieldConverter converter = fieldConverters.get(i);
+                // Multi values are appended to, so drop the old line's values
+                if (converter == FieldConverter.STRING_ARRAY
+                        || values.get(i) == null) {
+                    multiValues.remove(node, name);
+                    if (node.hasProperty(name)) {
+                        node.getProperty(name).remove();
+                    }
+                }
+                saveProperty(node, name, values.get(i), converter);
+            }
+            node.setProperty(HASH_PROPERTY, row.getHash());
+            deltaReport.addUpdated();
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e, "Error while updating node: "
+                    + path);
+        }
+    }
+
+    /**
+     * Removes special chars. In JCR, ':' means namespace.
+     */
+    private String toNodePath(String path) {
+        return NodeNames.toNodePath(path);
+    }
+
+    /**
+     * Creates the node of a line and returns the node holding its
+     * properties (jcr:content for pages).
+     */
+    private Node saveNode(String path, List<Object> values)
+            throws NorthpointException {
+        try {
+            path = toNodePath(path);
+
+            // Create parent node first
+            String parentPath = path.substring(0, path.lastIndexOf('/'));
+            Node folderNode = pathCache.getParent(parentPath);
+            if (folderNode == null) {
+                folderNode = JcrUtil.createPath(parentPath, primaryType,
+                        session);
+                pathCache.putParent(parentPath, folderNode);
+                Node parentNode = folderNode;
+                if (primaryType.equals("cq:Page")) {
+                    parentNode = parentNode.addNode("jcr:content",
+                            "cq:PageContent");
+                }
+
+                for (Object[] field : parentFields) {
+                    String name = (String) field[0];
+                    int index = (Integer) field[1];
+                    ImportScript script = (ImportScript) field[2];
+                    Object value = values.get(index);
+                    FieldConverter converter = fieldConverters.get(index);
+                    if (script != null) {
+                        value = script.call(value != null ? value.toString()
+                                : null);
+                        converter = FieldConverter.STRING;
+                    }
+                    saveProperty(parentNode, name, value, converter);
+                }
+            }
+
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            Node node = folderNode.hasNode(name) ? JcrUtil.createUniquePath(
+                    path, primaryType, session) : folderNode.addNode(name,
+                    primaryType);
+            if (primaryType.equals("cq:Page")) {
+                node = node.addNode("jcr:content", "cq:PageContent");
+            }
+
+            for (Object[] field : defaultFields) {
+                saveProperty(node, (String) field[0], field[2],
+                        (FieldConverter) field[1]);
+            }
+
+            for (int i = 0; i < fields.size(); i++) {
+                saveProperty(node, fields.get(i)[0], values.get(i),
+                        fieldConverters.get(i));
+            }
+            return node;
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e, "Error while saving node: " + path);
+        }
+    }
+
+    private String getName(String[] cols) throws NorthpointException {
+        if (isNameFromField) {
+            String name = cols[conf.getNameFieldIndex(0)];
+            if (name == null || name.isEmpty()) {
+                throw new NorthpointException(null, "Name field "
+                        + nameFromField + " is empty");
+            }
+            return name;
+        } else {
+            String[] scriptParams = new String[conf.getNameFieldCount()];
+            for (int i = 0; i < scriptParams.length; i++) {
+                scriptParams[i] = cols[conf.getNameFieldIndex(i)];
+            }
+            long start = System.nanoTime();
+            String name = nameScript.call(scriptParams);
+            metrics.addScriptTime(System.nanoTime() - start);
+            if (name == null) {
+                throw new NorthpointException(null,
+                        "Name script returned no value");
+            }
+
+            // Omit special characters and unnecessary dashes
+            return NodeNames.sanitize(name);
+        }
+    }
+
+    private List<Object> readLine(String[] cols) throws NorthpointException {
+        if (cols.length < fields.size()) {
+            throw new NorthpointException(null,
+                    "Too Few columns. There should be " + fields.size()
+                            + " columns");
+        }
+        List<Object> result = new ArrayList<Object>(fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            ImportScript script = fieldScripts.get(i);
+            String value = cols[i];
+
+            // Execute script
+            if (script != null) {
+                long start = System.nanoTime();
+                value = script.call(value);
+                metrics.addScriptTime(System.nanoTime() - start);
+            }
+            long start = System.nanoTime();
+            result.add(fieldConverters.get(i).convert(value));
+            metrics.addParseTime(System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    private void saveProperty(Node node, String key, Object value,
+            FieldConverter converter) throws NorthpointException {
+        try {
+            if (key.contains("/")) {
+                String relPath = key.substring(0, key.lastIndexOf('/'));
+                String absolutePath = node.getPath() + "/" + relPath;
+                key = key.substring(key.lastIndexOf('/') + 1);
+                node = JcrUtil.createPath(absolutePath, "nt:unstructured",
+                        session);
+            }
+            if (converter == FieldConverter.STRING_ARRAY) {
+                // Written once per batch, see saveBatch()
+                if (value != null) {
+                    multiValues.add(node, key, (String) value);
+                }
+            } else {
+                converter.setProperty(node, key, value);
+            }
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e,
+                    "Repository Exception while setting property: " + key);
+        }
+    }
+
+    public boolean isDryRunSuccess() {
+        return this.dryRunSuccess;
+    }
+}
@@ -1,20 +1,44 @@
 package com.northpointdigital.basics.dataimport.impl;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.security.AccessControlException;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import com.northpointdigital.basics.exception.NorthpointException;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.northpointdigital.basics.dataimport.DataImporter;
 import com.northpointdigital.basics.dataimport.DataImporterFactory;
+import com.northpointdigital.basics.dataimport.ImportJob;
 
-@Component
+@Component(metatype = true)
 @Service(value = DataImporterFactory.class)
 @Properties({
 	@Property(name = "service.pid", value = "com.northpointdigital.basics.dataimport.dataimportfactory", propertyPrivate = false),
@@ -24,11 +48,53 @@ public class DataImporterFactoryImpl implements DataImporterFactory {
     private static Logger log = LoggerFactory
 	    .getLogger(DataImporterFactoryImpl.class);
 
+    private static final long JOB_RETENTION_MILLIS = 24L * 60 * 60 * 1000;
+
+    @Property(intValue = 2, label = "Import threads", description = "Number of imports running at the same time")
+    private static final String JOB_THREADS = "import.job.threads";
+
+    @Property(intValue = 20, label = "Import queue size", description = "Number of imports waiting for a free thread")
+    private static final String JOB_QUEUE_SIZE = "import.job.queue.size";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private ImportConfCache confCache;
+
+    private ExecutorService jobExecutor;
+    private final Map<String, ImportJobImpl> jobs = new ConcurrentHashMap<String, ImportJobImpl>();
+
+    @Activate
+    protected void activate(ComponentContext context) {
+	Dictionary<?, ?> props = context.getProperties();
+	int threads = toInt(props.get(JOB_THREADS), 2);
+	int queueSize = toInt(props.get(JOB_QUEUE_SIZE), 20);
+	jobExecutor = new ThreadPoolExecutor(threads, threads, 0L,
+		TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueSize));
+    }
+
+    @Deactivate
+    protected void deactivate() {
+	for (ImportJobImpl job : jobs.values()) {
+	    cancel(job);
+	}
+	jobExecutor.shutdownNow();
+	jobs.clear();
+    }
+
     public DataImporter getDataImporter(String type, Reader reader,
 	    ResourceResolver rr, String confPath, String destPath) {
 	try {
 	    if ("csv".equalsIgnoreCase(type)) {
-		return new CsvDataImporter(reader, rr, confPath, destPath);
+		return new CsvDataImporter(reader, rr, confPath, destPath, ',',
+			confCache);
+	    } else if ("tsv".equalsIgnoreCase(type)) {
+		return new CsvDataImporter(reader, rr, confPath, destPath, '\t',
+			confCache);
+	    } else if ("jsonl".equalsIgnoreCase(type)) {
+		return new JsonLinesDataImporter(reader, rr, confPath, destPath,
+			confCache);
 	    }
 	} catch (NorthpointException e) {
 	    log.error("Cannot get data import for type " + type + ". Reason: "
@@ -37,8 +103,195 @@ public class DataImporterFactoryImpl implements DataImporterFactory {
 	return null;
     }
 
-    public DataImporter getDataImporter(String type, Reader reader) {
-	// TODO Auto-generated method stub
+    public DataImporter getDataImporter(String type, FileChannel channel,
+	    ResourceResolver rr, String confPath, String destPath) {
+	try {
+	    if ("csv".equalsIgnoreCase(type)) {
+		return new CsvDataImporter(channel, rr, confPath, destPath, ',',
+			confCache);
+	    } else if ("tsv".equalsIgnoreCase(type)) {
+		return new CsvDataImporter(channel, rr, confPath, destPath, '\t',
+			confCache);
+	    }
+	} catch (NorthpointException e) {
+	    log.error("Cannot get data import for type " + type + ". Reason: "
+		    + e.getReason());
+	}
 	return null;
     }
+
+    public String submitImport(String type, Reader reader,
+	    ResourceResolver rr, String confPath, String destPath,
+	    boolean dryRun) throws NorthpointException {
+	checkAccess(rr, confPath, destPath);
+	removeExpiredJobs();
+
+	final ImportJobImpl job = new ImportJobImpl(UUID.randomUUID()
+		.toString(), type, rr.getUserID(), reader, confPath, destPath,
+		dryRun);
+
+	// One job per destination subtree
+	synchronized (jobs) {
+	    for (ImportJobImpl other : jobs.values()) {
+		if (!other.isDone()
+			&& isSameSubtree(other.getDestPath(), destPath)) {
+		    throw new NorthpointException(null, "Import job "
+			    + other.getId() + " is already writing to "
+			    + other.getDestPath());
+		}
+	    }
+	    jobs.put(job.getId(), job);
+	}
+
+	try {
+	    job.setFuture(jobExecutor.submit(new Runnable() {
+		public void run() {
+		    runJob(job);
+		}
+	    }));
+	} catch (RejectedExecutionException e) {
+	    jobs.remove(job.getId());
+	    throw new NorthpointException(e, "Import queue is full.");
+	}
+	return job.getId();
+    }
+
+    public ImportJob getImportJob(String jobId) {
+	return jobs.get(jobId);
+    }
+
+    public boolean cancelImportJob(String jobId) {
+	ImportJobImpl job = jobs.get(jobId);
+	return job != null && cancel(job);
+    }
+
+    private boolean cancel(ImportJobImpl job) {
+	synchronized (job) {
+	    boolean cancelled = job.cancel();
+	    // A job cancelled before it started never runs its own cleanup
+	    if (cancelled && job.getStarted() == null && !job.isDone()) {
+		job.finish(ImportJob.Status.CANCELLED, new String[0]);
+		closeReader(job);
+	    }
+	    return cancelled;
+	}
+    }
+
+    private void runJob(ImportJobImpl job) {
+	synchronized (job) {
+	    if (job.isDone()) {
+		return;
+	    }
+	    job.start();
+	}
+	log.info("Starting import job " + job.getId() + " into "
+		+ job.getDestPath());
+	ResourceResolver rr = null;
+	try {
+	    // The job may only do what the user who submitted it may do
+	    Map<String, Object> authInfo = new HashMap<String, Object>();
+	    authInfo.put(ResourceResolverFactory.USER_IMPERSONATION,
+		    job.getUserId());
+	    rr = resolverFactory.getAdministrativeResourceResolver(authInfo);
+	    DataImporter importer = getDataImporter(job.getType(),
+		    job.getReader(), rr, job.getConfPath(), job.getDestPath());
+	    if (importer == null) {
+		job.finish(ImportJob.Status.FAILED, new String[] { "Cannot get data import for type "
+			+ job.getType() });
+		return;
+	    }
+	    job.setImporter(importer);
+	    String[] errors;
+	    ImportJob.Status status;
+	    if (job.isDryRun()) {
+		errors = importer.doDryRun();
+		job.setDryRunPath(importer.getDryRunPath());
+		status = importer.isDryRunSuccess() ? ImportJob.Status.SUCCEEDED
+			: ImportJob.Status.FAILED;
+	    } else {
+		errors = importer.doImport();
+		status = errors.length == 0 ? ImportJob.Status.SUCCEEDED
+			: ImportJob.Status.SUCCEEDED_WITH_ERRORS;
+	    }
+	    job.finish(status, errors);
+	} catch (LoginException e) {
+	    log.error("Cannot get session for import job " + job.getId(), e);
+	    job.finish(ImportJob.Status.FAILED, new String[] { "Cannot get session: "
+		    + e.getMessage() });
+	} catch (NorthpointException e) {
+	    job.finish(job.isCancelRequested() ? ImportJob.Status.CANCELLED
+		    : ImportJob.Status.FAILED, new String[] { e.getReason() });
+	} catch (RuntimeException e) {
+	    log.error("Import job " + job.getId() + " failed", e);
+	    job.finish(ImportJob.Status.FAILED, new String[] { e.toString() });
+	} finally {
+	    if (rr != null) {
+		rr.close();
+	    }
+	    closeReader(job);
+	    log.info("Import job " + job.getId() + " finished: "
+		    + job.getStatus());
+	}
+    }
+
+    /**
+     * Refuses imports the caller could not run synchronously either, before
+     * they are queued.
+     */
+    private void checkAccess(ResourceResolver rr, String confPath,
+	    String destPath) throws NorthpointException {
+	Session session = rr.adaptTo(Session.class);
+	try {
+	    if (!session.nodeExists(confPath)) {
+		throw new NorthpointException(null, "Conf path not found: "
+			+ confPath);
+	    }
+	    session.checkPermission(destPath, "add_node,set_property,remove");
+	} catch (AccessControlException e) {
+	    throw new NorthpointException(e, "User " + rr.getUserID()
+		    + " may not import into " + destPath);
+	} catch (RepositoryException e) {
+	    throw new NorthpointException(e,
+		    "Repository Exception while checking access to " + destPath
+			    + ". Reason: " + e.getMessage());
+	}
+    }
+
+    private void closeReader(ImportJobImpl job) {
+	try {
+	    job.getReader().close();
+	} catch (IOException e) {
+	    log.warn("Cannot close reader of import job " + job.getId());
+	}
+    }
+
+    private void removeExpiredJobs() {
+	long expiry = System.currentTimeMillis() - JOB_RETENTION_MILLIS;
+	Iterator<ImportJobImpl> iter = jobs.values().iterator();
+	while (iter.hasNext()) {
+	    ImportJobImpl job = iter.next();
+	    if (job.isDone() && job.getFinished().getTimeInMillis() < expiry) {
+		iter.remove();
+	    }
+	}
+    }
+
+    private boolean isSameSubtree(String path, String otherPath) {
+	return path.equals(otherPath) || path.startsWith(otherPath + "/")
+	    || otherPath.startsWith(path + "/");
+    }
+
+    private int toInt(Object value, int defaultValue) {
+	if (value instanceof Number) {
+	    return ((Number) value).intValue();
+	}
+	if (value != null) {
+	    try {
+		return Integer.parseInt(value.toString());
+	    } catch (NumberFormatException e) {
+		log.warn("Invalid number: " + value);
+	    }
+	}
+	return defaultValue;
+    }
 }
@@ -0,0 +1,248 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+
+import com.northpointdigital.basics.exception.NorthpointException;
+
+/**
+ * Converts the column values of one conf field type. The type string of a
+ * field is parsed once into a converter, which then turns the raw column
+ * value into a typed object and writes it as a typed JCR value.
+ * <p>
+ * Supported types: <code>string</code>, <code>string[]</code>,
+ * <code>boolean</code>, <code>long</code>, <code>double</code>,
+ * <code>decimal</code>, <code>uri</code> and <code>date</code> with an
+ * optional pattern, e.g. <code>date{yyyy-MM-dd}</code>. Converters are
+ * stateless (date formats are kept per thread), so one instance can be used
+ * by several threads.
+ */
+public abstract class FieldConverter {
+    public static final FieldConverter STRING = new FieldConverter("string") {
+        public Object convert(String value) {
+            return value;
+        }
+
+        public Value toValue(ValueFactory vf, Object value) {
+            return vf.createValue((String) value);
+        }
+    };
+
+    /**
+     * Values are collected per batch by {@link MultiValueBuffer}, which
+     * writes each property once; they are never written one by one.
+     */
+    public static final FieldConverter STRING_ARRAY = new FieldConverter(
+            "string[]") {
+        public Object convert(String value) {
+            return value;
+        }
+
+        public Value toValue(ValueFactory vf, Object value) {
+            throw new UnsupportedOperationException(
+                    "string[] values are written by MultiValueBuffer");
+        }
+    };
+
+    public static final FieldConverter BOOLEAN = new FieldConverter("boolean") {
+        public Object convert(String value) {
+            return "true".equalsIgnoreCase(value) ? Boolean.TRUE
+                    : Boolean.FALSE;
+        }
+
+        public Value toValue(ValueFactory vf, Object value) {
+            return vf.createValue(((Boolean) value).booleanValue());
+        }
+    };
+
+    public static final FieldConverter LONG = new FieldConverter("long") {
+        public Object convert(String value) throws NorthpointException {
+            if (isEmpty(value)) {
+                return null;
+            }
+            try {
+                return Long.valueOf(Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                throw new NorthpointException(e, "Error parsing long \""
+                        + value + "\"");
+            }
+        }
+
+        public Value toValue(ValueFactory vf, Object value) {
+            return vf.createValue(((Long) value).longValue());
+        }
+    };
+
+    public static final FieldConverter DOUBLE = new FieldConverter("double") {
+        public Object convert(String value) throws NorthpointException {
+            if (isEmpty(value)) {
+                return null;
+            }
+            try {
+                return Double.valueOf(Double.parseDouble(value.trim()));
+            } catch (NumberFormatException e) {
+                throw new NorthpointException(e, "Error parsing double \""
+                        + value + "\"");
+            }
+        }
+
+        public Value toValue(ValueFactory vf, Object value) {
+            return vf.createValue(((Double) value).doubleValue());
+        }
+    };
+
+    public static final FieldConverter DECIMAL = new FieldConverter("decimal") {
+        public Object convert(String value) throws NorthpointException {
+            if (isEmpty(value)) {
+                return null;
+            }
+            try {
+                return new BigDecimal(value.trim());
+            } catch (NumberFormatException e) {
+                throw new NorthpointException(e, "Error parsing decimal \""
+                        + value + "\"");
+            }
+        }
+
+        public Value toValue(ValueFactory vf, Object value) {
+            return vf.createValue((BigDecimal) value);
+        }
+    };
+
+    public static final FieldConverter URI_TYPE = new FieldConverter("uri") {
+        public Object convert(String value) throws NorthpointException {
+            if (isEmpty(value)) {
+                return null;
+            }
+            try {
+                return new URI(value.trim()).toString();
+            } catch (URISyntaxException e) {
+                throw new NorthpointException(e, "Error parsing uri \""
+                        + value + "\"");
+            }
+        }
+
+        public Value toValue(ValueFactory vf, Object value)
+                throws RepositoryException {
+            return vf.createValue((String) value, PropertyType.URI);
+        }
+    };
+
+    private final String type;
+
+    protected FieldConverter(String type) {
+        this.type = type;
+    }
+
+    /**
+     * Returns the converter for a conf type string.
+     */
+    public static FieldConverter forType(String type)
+            throws NorthpointException {
+        if (type == null || type.equals("string")) {
+            return STRING;
+        } else if (type.equals("string[]")) {
+            return STRING_ARRAY;
+        } else if (type.equals("boolean")) {
+            return BOOLEAN;
+        } else if (type.equals("long")) {
+            return LONG;
+        } else if (type.equals("double")) {
+            return DOUBLE;
+        } else if (type.equals("decimal")) {
+            return DECIMAL;
+        } else if (type.equals("uri")) {
+            return URI_TYPE;
+        } else if (type.startsWith("date")) {
+            String format = type.length() > "date".length() + 1 ? type
+                    .substring("date".length() + 1, type.length() - 1) : "";
+            if (format.isEmpty()) {
+                format = AbstractDataImporter.DEFAULT_DATE_FORMAT;
+            }
+            return new DateConverter(type, format);
+        } else if (type.startsWith("string")) {
+            return STRING;
+        }
+        throw new NorthpointException(null, "Unknown field type: " + type);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Converts a raw column value. Returns null if no property should be
+     * written.
+     */
+    public abstract Object convert(String value) throws NorthpointException;
+
+    public abstract Value toValue(ValueFactory vf, Object value)
+            throws RepositoryException;
+
+    public void setProperty(Node node, String name, Object value)
+            throws RepositoryException {
+        if (value == null) {
+            return;
+        }
+        node.setProperty(name,
+                toValue(node.getSession().getValueFactory(), value));
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    private static class DateConverter extends FieldConverter {
+        private final String format;
+        private final ThreadLocal<SimpleDateFormat> dateFormat;
+
+        DateConverter(String type, final String format)
+                throws NorthpointException {
+            super(type);
+            this.format = format;
+            try {
+                new SimpleDateFormat(format);
+            } catch (IllegalArgumentException e) {
+                throw new NorthpointException(e, "Invalid date format \""
+                        + format + "\"");
+            }
+            this.dateFormat = new ThreadLocal<SimpleDateFormat>() {
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat(format);
+                }
+            };
+        }
+
+        public Object convert(String value) throws NorthpointException {
+            if (value == null) {
+                return null;
+            }
+            Date date;
+            try {
+                date = dateFormat.get().parse(value);
+            } catch (ParseException e) {
+                throw new NorthpointException(e, "Error parsing date \""
+                        + value + "\" using format \"" + format + "\"");
+            }
+            Calendar cal = new GregorianCalendar();
+            cal.setTime(date);
+            return cal;
+        }
+
+        public Value toValue(ValueFactory vf, Object value) {
+            return vf.createValue((Calendar) value);
+        }
+    }
+}
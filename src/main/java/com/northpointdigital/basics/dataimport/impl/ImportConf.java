@@ -0,0 +1,328 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+
+import org.mozilla.javascript.Scriptable;
+
+import com.northpointdigital.basics.exception.NorthpointException;
+
+/**
+ * A compiled import conf node: fields with their resolved indexes, compiled
+ * scripts and converters, and the import settings. Immutable once created,
+ * so one instance can be shared by any number of imports and threads (see
+ * {@link ImportConfCache}).
+ */
+public class ImportConf {
+    private final String path;
+    private final long lastModified;
+
+    private final List<String[]> fields;
+    private final List<ImportScript> fieldScripts;
+    private final List<FieldConverter> fieldConverters;
+    private final List<Object[]> defaultFields;
+    private final List<Object[]> parentFields;
+    private final String primaryType;
+    private final boolean isNameFromField;
+    private final String nameFromField;
+    private final ImportScript nameScript;
+    private final int[] nameFieldIndexes;
+    private final Charset charset;
+    private final Character separator;
+    private final char quote;
+    private final long batchSize;
+    private final int threads;
+    private final boolean delta;
+    private final boolean deltaRemove;
+
+    /**
+     * Compiles a conf node.
+     */
+    public ImportConf(Node confNode) throws NorthpointException {
+        String confPath = null;
+        try {
+            confPath = confNode.getPath();
+            this.path = confPath;
+            this.lastModified = getLastModified(confNode);
+
+            // Read primary type
+            if (confNode.hasProperty("primaryType")) {
+                primaryType = confNode.getProperty("primaryType").getString();
+            } else {
+                primaryType = "nt:unstructured";
+            }
+
+            // Read format dialect
+            charset = Charset.forName(confNode.hasProperty("charset") ? confNode
+                    .getProperty("charset").getString() : "UTF-8");
+            separator = confNode.hasProperty("separator") ? Character
+                    .valueOf(readChar(confNode, "separator")) : null;
+            quote = confNode.hasProperty("quote") ? readChar(confNode, "quote")
+                    : '"';
+
+            // Read number of lines per save
+            long size = 0;
+            if (confNode.hasProperty("batchSize")) {
+                size = confNode.getProperty("batchSize").getLong();
+            }
+            batchSize = size > 0 ? size
+                    : AbstractDataImporter.DEFAULT_BATCH_SIZE;
+
+            // Read delta mode: only write new and changed lines
+            delta = confNode.hasProperty("delta")
+                    && confNode.getProperty("delta").getBoolean();
+            deltaRemove = delta && confNode.hasProperty("deltaRemove")
+                    && confNode.getProperty("deltaRemove").getBoolean();
+
+            // Read number of threads transforming lines
+            threads = confNode.hasProperty("threads") ? (int) confNode
+                    .getProperty("threads").getLong() : 1;
+
+            // All scripts of this conf are compiled into one shared scope
+            Scriptable scope = ImportScript.createScope();
+
+            // Read name gen conf
+            String[] nameScriptFields;
+            Node nameGenNode = confNode.getNode("nameGen");
+            if (nameGenNode.hasProperty("fromField")) {
+                isNameFromField = true;
+                nameFromField = nameGenNode.getProperty("fromField")
+                        .getString();
+                nameScript = null;
+                nameScriptFields = new String[] { nameFromField };
+            } else {
+                isNameFromField = false;
+                nameFromField = null;
+                nameScript = compileScript(scope,
+                        nameGenNode.getProperty("script").getString(),
+                        nameGenNode.getPath());
+                nameScriptFields = nameGenNode.getProperty("scriptFields")
+                        .getString().split(",");
+            }
+
+            // Read fields
+            List<String[]> fields = new ArrayList<String[]>();
+            List<ImportScript> fieldScripts = new ArrayList<ImportScript>();
+            List<FieldConverter> fieldConverters = new ArrayList<FieldConverter>();
+            Map<String, Integer> fieldIndexes = new HashMap<String, Integer>();
+            Node fieldsNode = confNode.getNode("fields");
+            NodeIterator nodeIter = fieldsNode.getNodes();
+            while (nodeIter.hasNext()) {
+                Node node = nodeIter.nextNode();
+                String key = node.getName();
+                String name = node.hasProperty("name") ? node.getProperty(
+                        "name").getString() : key;
+                String type = node.hasProperty("type") ? node.getProperty(
+                        "type").getString() : "string";
+                String script = node.hasProperty("script") ? node.getProperty(
+                        "script").getString() : null;
+
+                String[] confArr = new String[4];
+                confArr[0] = name;
+                confArr[1] = type;
+                confArr[2] = script;
+                confArr[3] = key;
+                fieldIndexes.put(key, Integer.valueOf(fields.size()));
+                fields.add(confArr);
+                fieldScripts.add(compileScript(scope, script, node.getPath()));
+                fieldConverters.add(FieldConverter.forType(type));
+            }
+            this.fields = Collections.unmodifiableList(fields);
+            this.fieldScripts = Collections.unmodifiableList(fieldScripts);
+            this.fieldConverters = Collections
+                    .unmodifiableList(fieldConverters);
+
+            // Resolve the indexes of the name fields
+            nameFieldIndexes = new int[nameScriptFields.length];
+            for (int i = 0; i < nameScriptFields.length; i++) {
+                Integer index = fieldIndexes.get(nameScriptFields[i]);
+                nameFieldIndexes[i] = index != null ? index.intValue() : 0;
+            }
+
+            // Read parent fields
+            List<Object[]> parentFields = new ArrayList<Object[]>();
+            if (confNode.hasNode("parent-fields")) {
+                Node parentFieldsNode = confNode.getNode("parent-fields");
+                nodeIter = parentFieldsNode.getNodes();
+                while (nodeIter.hasNext()) {
+                    Node node = nodeIter.nextNode();
+                    String key = node.getName();
+                    String name = node.hasProperty("name") ? node.getProperty(
+                            "name").getString() : key;
+                    String script = node.hasProperty("script") ? node
+                            .getProperty("script").getString() : null;
+                    Integer index = fieldIndexes.get(key);
+                    Object[] confArr = new Object[3];
+                    confArr[0] = name;
+                    confArr[1] = index != null ? index : Integer.valueOf(0);
+                    confArr[2] = compileScript(scope, script, node.getPath());
+                    parentFields.add(confArr);
+                }
+            }
+            this.parentFields = Collections.unmodifiableList(parentFields);
+
+            // Read default fields
+            List<Object[]> defaultFields = new ArrayList<Object[]>();
+            if (confNode.hasNode("defaultFields")) {
+                Node defaultFieldsNode = confNode.getNode("defaultFields");
+                nodeIter = defaultFieldsNode.getNodes();
+                while (nodeIter.hasNext()) {
+                    Node node = nodeIter.nextNode();
+                    String key = node.getName();
+                    String type = node.hasProperty("type") ? node.getProperty(
+                            "type").getString() : "string";
+                    String value = node.getProperty("value").getString();
+
+                    // Default values are the same for every line, so they
+                    // are converted only once.
+                    FieldConverter converter = FieldConverter.forType(type);
+                    Object[] confArr = new Object[3];
+                    confArr[0] = key;
+                    confArr[1] = converter;
+                    confArr[2] = converter.convert(value);
+                    defaultFields.add(confArr);
+                }
+            }
+            this.defaultFields = Collections.unmodifiableList(defaultFields);
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e,
+                    "Repository Exception while reading import configuration: "
+                            + confPath + ". Reason: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the jcr:lastModified time of a conf node, or -1 if it has none.
+     */
+    public static long getLastModified(Node confNode)
+            throws RepositoryException {
+        if (confNode.hasProperty("jcr:lastModified")) {
+            return confNode.getProperty("jcr:lastModified").getDate()
+                    .getTimeInMillis();
+        }
+        return -1;
+    }
+
+    private static char readChar(Node confNode, String name)
+            throws RepositoryException, NorthpointException {
+        String value = confNode.getProperty(name).getString();
+        if (value.equals("\\t")) {
+            return '\t';
+        }
+        if (value.length() != 1) {
+            throw new NorthpointException(null, "Property " + name
+                    + " must be a single character: " + value);
+        }
+        return value.charAt(0);
+    }
+
+    private static ImportScript compileScript(Scriptable scope, String script,
+            String name) throws NorthpointException {
+        if (script == null || script.trim().isEmpty()) {
+            return null;
+        }
+        return new ImportScript(scope, script, name);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the fields as arrays of name, type, script and key.
+     */
+    public List<String[]> getFields() {
+        return fields;
+    }
+
+    public List<ImportScript> getFieldScripts() {
+        return fieldScripts;
+    }
+
+    public List<FieldConverter> getFieldConverters() {
+        return fieldConverters;
+    }
+
+    /**
+     * Returns the default fields as arrays of name, converter and converted
+     * value.
+     */
+    public List<Object[]> getDefaultFields() {
+        return defaultFields;
+    }
+
+    /**
+     * Returns the parent fields as arrays of name, field index and script.
+     */
+    public List<Object[]> getParentFields() {
+        return parentFields;
+    }
+
+    public String getPrimaryType() {
+        return primaryType;
+    }
+
+    public boolean isNameFromField() {
+        return isNameFromField;
+    }
+
+    public String getNameFromField() {
+        return nameFromField;
+    }
+
+    public ImportScript getNameScript() {
+        return nameScript;
+    }
+
+    public int getNameFieldCount() {
+        return nameFieldIndexes.length;
+    }
+
+    public int getNameFieldIndex(int i) {
+        return nameFieldIndexes[i];
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Returns the configured column separator, or null for the default of
+     * the format.
+     */
+    public Character getSeparator() {
+        return separator;
+    }
+
+    public char getQuote() {
+        return quote;
+    }
+
+    public long getBatchSize() {
+        return batchSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public boolean isDeltaRemove() {
+        return deltaRemove;
+    }
+}
@@ -0,0 +1,138 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.northpointdigital.basics.exception.NorthpointException;
+
+/**
+ * Keeps compiled import confs, keyed by conf path and jcr:lastModified, so
+ * creating an importer for a known conf does not read the conf tree or
+ * compile its scripts again. A cached conf is dropped as soon as anything
+ * below its conf node changes.
+ */
+@Service(value = ImportConfCache.class)
+@Component(metatype = false)
+public class ImportConfCache {
+    private static Logger log = LoggerFactory.getLogger(ImportConfCache.class);
+
+    @Reference
+    private SlingRepository repository;
+
+    private Session session;
+    private final Map<String, ImportConf> confs = new ConcurrentHashMap<String, ImportConf>();
+    private final Map<String, EventListener> listeners = new ConcurrentHashMap<String, EventListener>();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @Activate
+    protected void activate() throws RepositoryException {
+        session = repository.loginAdministrative(null);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        try {
+            ObservationManager observation = session.getWorkspace()
+                    .getObservationManager();
+            for (EventListener listener : listeners.values()) {
+                observation.removeEventListener(listener);
+            }
+        } catch (RepositoryException e) {
+            log.warn("Cannot remove import conf listeners: " + e.getMessage());
+        }
+        listeners.clear();
+        confs.clear();
+        session.logout();
+    }
+
+    /**
+     * Returns the compiled conf at a path, compiling it if it is not cached
+     * or was modified since. The conf node is read with the caller's
+     * resolver, so access control still applies.
+     */
+    public ImportConf getConf(ResourceResolver rr, String confPath)
+            throws NorthpointException {
+        Node confNode = rr.resolve(confPath).adaptTo(Node.class);
+        if (confNode == null) {
+            throw new NorthpointException(null, "Conf path not found: "
+                    + confPath);
+        }
+        try {
+            ImportConf conf = confs.get(confPath);
+            if (conf != null
+                    && conf.getLastModified() == ImportConf
+                            .getLastModified(confNode)) {
+                return conf;
+            }
+        } catch (RepositoryException e) {
+            throw new NorthpointException(e,
+                    "Repository Exception while reading import configuration: "
+                            + confPath + ". Reason: " + e.getMessage());
+        }
+
+        // Listen before compiling, so no change can slip in unnoticed
+        listen(confPath);
+        long generation = invalidations.get();
+        ImportConf conf = new ImportConf(confNode);
+        if (invalidations.get() == generation) {
+            confs.put(confPath, conf);
+        }
+        return conf;
+    }
+
+    /**
+     * Drops a compiled conf.
+     */
+    public void invalidate(String confPath) {
+        invalidations.incrementAndGet();
+        if (confs.remove(confPath) != null) {
+            log.debug("Import conf changed: " + confPath);
+        }
+    }
+
+    private synchronized void listen(final String confPath) {
+        if (listeners.containsKey(confPath)) {
+            return;
+        }
+        EventListener listener = new EventListener() {
+            public void onEvent(EventIterator events) {
+                invalidate(confPath);
+            }
+        };
+        try {
+            session.getWorkspace()
+                    .getObservationManager()
+                    .addEventListener(
+                            listener,
+                            Event.NODE_ADDED | Event.NODE_REMOVED
+                                    | Event.NODE_MOVED | Event.PROPERTY_ADDED
+                                    | Event.PROPERTY_CHANGED
+                                    | Event.PROPERTY_REMOVED, confPath, true,
+                            null, null, false);
+            listeners.put(confPath, listener);
+        } catch (RepositoryException e) {
+            // Still correct through the jcr:lastModified check
+            log.warn("Cannot listen to changes of import conf " + confPath
+                    + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.io.Reader;
+import java.util.Calendar;
+import java.util.concurrent.Future;
+
+import com.northpointdigital.basics.dataimport.DataImporter;
+import com.northpointdigital.basics.dataimport.ImportJob;
+import com.northpointdigital.basics.dataimport.ImportMetrics;
+
+public class ImportJobImpl implements ImportJob {
+    private final String id;
+    private final String type;
+    private final String userId;
+    private final Reader reader;
+    private final String confPath;
+    private final String destPath;
+    private final boolean dryRun;
+    private final Calendar submitted;
+
+    private volatile Status status;
+    private volatile String[] errors;
+    private volatile DataImporter importer;
+    private volatile String dryRunPath;
+    private volatile Calendar started;
+    private volatile Calendar finished;
+    private volatile Future<?> future;
+    private volatile boolean cancelRequested;
+
+    public ImportJobImpl(String id, String type, String userId,
+            Reader reader, String confPath, String destPath, boolean dryRun) {
+        this.id = id;
+        this.type = type;
+        this.userId = userId;
+        this.reader = reader;
+        this.confPath = confPath;
+        this.destPath = destPath;
+        this.dryRun = dryRun;
+        this.submitted = Calendar.getInstance();
+        this.status = Status.QUEUED;
+        this.errors = new String[0];
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public Reader getReader() {
+        return reader;
+    }
+
+    public String getConfPath() {
+        return confPath;
+    }
+
+    public String getDestPath() {
+        return destPath;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String[] getErrors() {
+        return errors;
+    }
+
+    public ImportMetrics getMetrics() {
+        DataImporter current = importer;
+        return current != null ? current.getMetrics() : null;
+    }
+
+    public String getDryRunPath() {
+        return dryRunPath;
+    }
+
+    public Calendar getSubmitted() {
+        return submitted;
+    }
+
+    public Calendar getStarted() {
+        return started;
+    }
+
+    public Calendar getFinished() {
+        return finished;
+    }
+
+    public boolean isDone() {
+        return finished != null;
+    }
+
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    void setImporter(DataImporter importer) {
+        this.importer = importer;
+    }
+
+    void setDryRunPath(String dryRunPath) {
+        this.dryRunPath = dryRunPath;
+    }
+
+    void start() {
+        this.started = Calendar.getInstance();
+        this.status = Status.RUNNING;
+    }
+
+    void finish(Status status, String[] errors) {
+        this.errors = errors;
+        this.status = status;
+        this.finished = Calendar.getInstance();
+    }
+
+    boolean cancel() {
+        if (isDone()) {
+            return false;
+        }
+        cancelRequested = true;
+        Future<?> current = future;
+        return current == null || current.cancel(true);
+    }
+}
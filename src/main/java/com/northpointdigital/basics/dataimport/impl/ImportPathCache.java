@@ -0,0 +1,139 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Import scoped cache of the parent nodes written to and of the node names
+ * already present below the destination path. The child names of a
+ * destination folder are read with one traversal the first time a line
+ * targets that folder; the destination path itself is read up front. At most
+ * 1000 folders with 10000 names each are kept. Names of larger folders are
+ * looked up in the session, so a flat import of many lines does not keep
+ * every name in memory.
+ */
+public class ImportPathCache {
+    private static final int MAX_CACHED_FOLDERS = 1000;
+    private static final int MAX_CACHED_NAMES = 10000;
+
+    private final Session session;
+    private final String destPath;
+    private final Map<String, FolderNames> destNames;
+    private final Map<String, Node> parents;
+
+    public ImportPathCache(Session session, String destPath)
+            throws RepositoryException {
+        this.session = session;
+        this.destPath = destPath;
+        this.destNames = new BoundedMap<String, FolderNames>(
+                MAX_CACHED_FOLDERS);
+        this.parents = new BoundedMap<String, Node>(MAX_CACHED_FOLDERS);
+
+        getDestNames("");
+    }
+
+    /**
+     * Returns true if a node exists below the destination path.
+     *
+     * @param relPath the node path relative to the destination path
+     */
+    public boolean destExists(String relPath) throws RepositoryException {
+        int index = relPath.lastIndexOf('/');
+        String folder = index > 0 ? relPath.substring(0, index) : "";
+        FolderNames names = getDestNames(folder);
+        if (names.names.contains(relPath.substring(index + 1))) {
+            return true;
+        }
+        return !names.complete && session.nodeExists(destPath + "/" + relPath);
+    }
+
+    /**
+     * Remembers a node written below the destination path by this import.
+     * The node must be in the session, which is asked once the folder has
+     * too many names to cache.
+     */
+    public void addDest(String relPath) throws RepositoryException {
+        int index = relPath.lastIndexOf('/');
+        String folder = index > 0 ? relPath.substring(0, index) : "";
+        getDestNames(folder).add(relPath.substring(index + 1));
+    }
+
+    /**
+     * Returns the node at an absolute path, or null if it does not exist.
+     */
+    public Node getParent(String path) throws RepositoryException {
+        Node node = parents.get(path);
+        if (node == null && session.nodeExists(path)) {
+            node = session.getNode(path);
+            parents.put(path, node);
+        }
+        return node;
+    }
+
+    public void putParent(String path, Node node) {
+        parents.put(path, node);
+    }
+
+    /**
+     * Forgets everything, e.g. after pending changes have been discarded.
+     */
+    public void clear() {
+        destNames.clear();
+        parents.clear();
+    }
+
+    private FolderNames getDestNames(String folder) throws RepositoryException {
+        FolderNames names = destNames.get(folder);
+        if (names == null) {
+            names = new FolderNames();
+            String path = folder.isEmpty() ? destPath : destPath + "/" + folder;
+            if (session.nodeExists(path)) {
+                NodeIterator iter = session.getNode(path).getNodes();
+                while (iter.hasNext() && names.complete) {
+                    names.add(iter.nextNode().getName());
+                }
+            }
+            destNames.put(folder, names);
+        }
+        return names;
+    }
+
+    /**
+     * The child names of a folder, or the first of them if it has more than
+     * MAX_CACHED_NAMES.
+     */
+    private static class FolderNames {
+        private final Set<String> names = new HashSet<String>();
+        private boolean complete = true;
+
+        void add(String name) {
+            if (names.size() < MAX_CACHED_NAMES) {
+                names.add(name);
+            } else {
+                complete = false;
+            }
+        }
+    }
+
+    private static class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        BoundedMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
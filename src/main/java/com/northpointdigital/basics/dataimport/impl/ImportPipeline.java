@@ -0,0 +1,253 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.northpointdigital.basics.dataimport.ImportMetrics;
+
+/**
+ * Turns raw import lines into {@link ImportRow}s, in line order.
+ * <p>
+ * With one thread, lines are transformed on the calling thread. With more
+ * threads, a reader thread pulls the raw lines and hands them to a pool of
+ * workers, while the caller (the only thread touching the JCR session)
+ * takes the transformed rows in their original order. At most
+ * <code>4 * threads</code> lines are in flight; when the caller falls behind
+ * the reader blocks.
+ */
+public class ImportPipeline implements Iterator<ImportRow> {
+    private static Logger log = LoggerFactory.getLogger(ImportPipeline.class);
+
+    public interface RowTransformer {
+        /**
+         * Transforms a line. Must be thread-safe and must report failures
+         * with {@link ImportRow#failed(long, String)} instead of throwing.
+         */
+        ImportRow transform(long lineNumber, String[] cols);
+    }
+
+    // Compared by identity, so no read value can be taken for it
+    private static final String FAILED = new String("failed");
+
+    private static final Future<ImportRow> END = new FutureTask<ImportRow>(
+            new Callable<ImportRow>() {
+                public ImportRow call() {
+                    return null;
+                }
+            });
+
+    private final Iterator<String[]> lines;
+    private final long skipLines;
+    private final RowTransformer transformer;
+    private final ImportMetrics metrics;
+    private final ExecutorService workers;
+    private final BlockingQueue<Future<ImportRow>> rows;
+    private final Thread reader;
+
+    private volatile long lineCount;
+    private volatile RuntimeException readError;
+    private volatile boolean closed;
+    private boolean ended;
+    private ImportRow next;
+
+    /**
+     * Returns the columns to hand out for a line that cannot be read, e.g. a
+     * malformed record of a self-delimiting format. The pipeline turns it
+     * into a failed row instead of stopping the import.
+     */
+    public static String[] failedLine(String error) {
+        return new String[] { FAILED, error };
+    }
+
+    /**
+     * @param lines the raw lines
+     * @param skipLines the number of leading lines to read but not transform
+     * @param threads the number of worker threads
+     * @param transformer transforms one line into a row
+     * @param metrics receives the lines read and the time spent reading them
+     */
+    public ImportPipeline(Iterator<String[]> lines, long skipLines,
+            int threads, RowTransformer transformer, ImportMetrics metrics) {
+        this.lines = lines;
+        this.skipLines = skipLines;
+        this.transformer = transformer;
+        this.metrics = metrics;
+        if (threads > 1) {
+            this.workers = Executors.newFixedThreadPool(threads,
+                    new NamedThreadFactory("data-import-worker"));
+            this.rows = new ArrayBlockingQueue<Future<ImportRow>>(4 * threads);
+            this.reader = new NamedThreadFactory("data-import-reader")
+                    .newThread(new Runnable() {
+                        public void run() {
+                            read();
+                        }
+                    });
+            this.reader.start();
+        } else {
+            this.workers = null;
+            this.rows = null;
+            this.reader = null;
+        }
+    }
+
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (workers == null) {
+            while (next == null && lines.hasNext()) {
+                lineCount++;
+                String[] cols = readLine();
+                if (lineCount > skipLines) {
+                    next = transform(lineCount, cols);
+                }
+            }
+            return next != null;
+        }
+
+        if (ended) {
+            return false;
+        }
+        try {
+            Future<ImportRow> row = rows.take();
+            if (row == END) {
+                ended = true;
+                return false;
+            }
+            next = row.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for "
+                    + "import line " + (lineCount + 1));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot transform import line.",
+                    e.getCause());
+        }
+    }
+
+    public ImportRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ImportRow row = next;
+        next = null;
+        return row;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the number of lines read so far, including skipped lines.
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Returns the exception that stopped the reader thread, if any. Errors
+     * are returned wrapped in an {@link IllegalStateException}.
+     */
+    public RuntimeException getReadError() {
+        return readError;
+    }
+
+    /**
+     * Stops the reader and the workers. Must always be called.
+     */
+    public void close() {
+        closed = true;
+        if (reader != null) {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    private static boolean isFailedLine(String[] cols) {
+        return cols.length == 2 && cols[0] == FAILED;
+    }
+
+    private ImportRow transform(long lineNumber, String[] cols) {
+        if (isFailedLine(cols)) {
+            return ImportRow.failed(lineNumber, cols[1]);
+        }
+        return transformer.transform(lineNumber, cols);
+    }
+
+    private String[] readLine() {
+        long start = System.nanoTime();
+        String[] cols = lines.next();
+        metrics.addParseTime(System.nanoTime() - start);
+        metrics.addRowRead();
+        return cols;
+    }
+
+    private void read() {
+        try {
+            while (!closed && lines.hasNext()) {
+                final String[] cols = readLine();
+                final long lineNumber = ++lineCount;
+                if (lineNumber <= skipLines) {
+                    continue;
+                }
+                rows.put(workers.submit(new Callable<ImportRow>() {
+                    public ImportRow call() {
+                        try {
+                            return transform(lineNumber, cols);
+                        } catch (RuntimeException e) {
+                            return ImportRow.failed(lineNumber, e.toString());
+                        }
+                    }
+                }));
+            }
+        } catch (InterruptedException e) {
+            // closed by the writer
+        } catch (RuntimeException e) {
+            log.error("Cannot read import line " + (lineCount + 1), e);
+            readError = e;
+        } catch (Throwable e) {
+            log.error("Cannot read import line " + (lineCount + 1), e);
+            readError = new IllegalStateException("Cannot read import line "
+                    + (lineCount + 1), e);
+        } finally {
+            // Whatever stopped the reader, the writer must not wait forever
+            if (!closed) {
+                try {
+                    rows.put(END);
+                } catch (InterruptedException e) {
+                    // closed by the writer, nobody is waiting for the end
+                }
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.util.List;
+
+/**
+ * One transformed import line: the node name as stored (see
+ * {@link NodeNames#toNodePath}) and the converted
+ * field values, or the reason why the line could not be transformed.
+ */
+public class ImportRow {
+    private final long lineNumber;
+    private final String name;
+    private final List<Object> values;
+    private final String hash;
+    private final String error;
+
+    public ImportRow(long lineNumber, String name, List<Object> values,
+            String hash) {
+        this(lineNumber, name, values, hash, null);
+    }
+
+    private ImportRow(long lineNumber, String name, List<Object> values,
+            String hash, String error) {
+        this.lineNumber = lineNumber;
+        this.name = name;
+        this.values = values;
+        this.hash = hash;
+        this.error = error;
+    }
+
+    public static ImportRow failed(long lineNumber, String error) {
+        return new ImportRow(lineNumber, null, null, null, error);
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Returns the content hash of the raw line, used by delta imports.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,75 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+import com.northpointdigital.basics.exception.NorthpointException;
+
+/**
+ * A conf script (e.g. <code>function(a, b) { return a + b; }</code>) compiled
+ * once into a Rhino function. The scripts of an import share one sealed
+ * scope, so a compiled script can be called from any thread.
+ */
+public class ImportScript {
+    private final Scriptable scope;
+    private final Function function;
+
+    public ImportScript(Scriptable scope, String source, String name)
+            throws NorthpointException {
+        this.scope = scope;
+        Context cx = Context.enter();
+        try {
+            Object compiled = cx.evaluateString(scope, "(" + source + ")",
+                    name, 1, null);
+            if (!(compiled instanceof Function)) {
+                throw new NorthpointException(null,
+                        "Script is not a function: " + name);
+            }
+            this.function = (Function) compiled;
+        } catch (RhinoException e) {
+            throw new NorthpointException(e, "Error compiling javascript "
+                    + name + ": " + e.getMessage());
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * Creates the sealed scope shared by all scripts of an import.
+     */
+    public static Scriptable createScope() {
+        Context cx = Context.enter();
+        try {
+            ScriptableObject scope = cx.initStandardObjects(null, true);
+            scope.sealObject();
+            return scope;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    public String call(String... args) throws NorthpointException {
+        Object[] jsArgs = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            jsArgs[i] = args[i] != null ? args[i] : "";
+        }
+
+        Context cx = Context.enter();
+        try {
+            Object result = function.call(cx, scope, scope, jsArgs);
+            if (result == null || result instanceof Undefined) {
+                return null;
+            }
+            return Context.toString(result);
+        } catch (RhinoException e) {
+            throw new NorthpointException(e, "Error executing javascript: "
+                    + e.getMessage());
+        } finally {
+            Context.exit();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+
+import com.northpointdigital.basics.exception.NorthpointException;
+
+/**
+ * Imports JSON Lines: one JSON object per line. The value of a conf field is
+ * read from the member named like the field node. Arrays are joined with
+ * ',' so they can feed string[] fields; blank lines are skipped. A line
+ * that is not valid JSON fails on its own, the import goes on.
+ */
+public class JsonLinesDataImporter extends AbstractDataImporter {
+
+    public JsonLinesDataImporter(Reader reader, ResourceResolver rr,
+            String confPath, String destPath) throws NorthpointException {
+        this(reader, rr, confPath, destPath, null);
+    }
+
+    public JsonLinesDataImporter(Reader reader, ResourceResolver rr,
+            String confPath, String destPath, ImportConfCache confCache)
+            throws NorthpointException {
+        super(reader, rr, confPath, destPath, ',', confCache);
+    }
+
+    protected Iterator<String[]> readLines() throws NorthpointException {
+        final BufferedReader lines = new BufferedReader(getReader());
+        final List<String[]> fields = getFields();
+
+        return new Iterator<String[]>() {
+            private long lineNumber;
+            private String next;
+
+            public boolean hasNext() {
+                try {
+                    while (next == null) {
+                        String line = lines.readLine();
+                        if (line == null) {
+                            return false;
+                        }
+                        lineNumber++;
+                        if (!line.trim().isEmpty()) {
+                            next = line;
+                        }
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new IllegalStateException(
+                            "IO Exception while importing JSON Lines.", e);
+                }
+            }
+
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String line = next;
+                next = null;
+                try {
+                    JSONObject json = new JSONObject(line);
+                    String[] cols = new String[fields.size()];
+                    for (int i = 0; i < cols.length; i++) {
+                        cols[i] = toColumn(json.opt(fields.get(i)[3]));
+                    }
+                    return cols;
+                } catch (JSONException e) {
+                    // Records are self-delimiting, the next line is fine
+                    return ImportPipeline.failedLine("Invalid JSON on line "
+                            + lineNumber + ": " + e.getMessage());
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private String toColumn(Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            return null;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(array.get(i));
+            }
+            return sb.toString();
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,323 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads CSV lines from a memory-mapped file instead of a {@link java.io.Reader}.
+ * <p>
+ * Only the first <code>maxColumns</code> columns of a line are decoded; the
+ * rest are skipped without creating strings. The bytes of a column are
+ * unescaped into one reused buffer. Fields may be quoted with the quote
+ * character of the conf, quotes inside are doubled, and quoted fields may
+ * contain separators and line breaks, as with {@link com.day.text.csv.Csv}.
+ * <p>
+ * Files of any size are mapped in windows of at most {@link #WINDOW_SIZE}
+ * bytes, so a single line must be shorter than that. {@link #split} finds
+ * line boundaries to read parts of one file in parallel.
+ */
+public class MappedCsvReader implements Iterator<String[]> {
+    public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final FileChannel channel;
+    private final long end;
+    private final int maxColumns;
+    private final byte separator;
+    private final byte quote;
+    private final Charset charset;
+    private final int windowSize;
+
+    private final String[] columns;
+    private byte[] buffer = new byte[256];
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private String[] next;
+
+    public MappedCsvReader(FileChannel channel, int maxColumns,
+            char separator, char quote, Charset charset) throws IOException {
+        this(channel, 0, channel.size(), maxColumns, separator, quote,
+                charset);
+    }
+
+    /**
+     * Reads the lines between two offsets, which must be line boundaries as
+     * returned by {@link #split}.
+     */
+    public MappedCsvReader(FileChannel channel, long start, long end,
+            int maxColumns, char separator, char quote, Charset charset)
+            throws IOException {
+        this(channel, start, end, maxColumns, separator, quote, charset,
+                WINDOW_SIZE);
+    }
+
+    /**
+     * Reads the lines between two offsets through windows of the given size.
+     */
+    MappedCsvReader(FileChannel channel, long start, long end,
+            int maxColumns, char separator, char quote, Charset charset,
+            int windowSize) throws IOException {
+        checkAscii("separator", separator);
+        checkAscii("quote", quote);
+        if (!isAsciiCompatible(charset)) {
+            throw new IllegalArgumentException("Cannot map CSV in "
+                    + charset.name() + ": separators, quotes and line breaks "
+                    + "must be single ASCII bytes");
+        }
+        this.channel = channel;
+        this.end = end;
+        this.maxColumns = maxColumns;
+        this.separator = (byte) separator;
+        this.quote = (byte) quote;
+        this.charset = charset;
+        this.windowSize = windowSize;
+        this.columns = new String[maxColumns];
+        this.position = start;
+        map(start);
+    }
+
+    /**
+     * Splits a file into at most <code>parts</code> ranges that start and end
+     * on line boundaries outside of quoted fields.
+     *
+     * @return the start offsets of the ranges, followed by the file size
+     */
+    public static long[] split(FileChannel channel, int parts, char quote)
+            throws IOException {
+        return split(channel, parts, quote, WINDOW_SIZE);
+    }
+
+    static long[] split(FileChannel channel, int parts, char quote,
+            int windowSize) throws IOException {
+        checkAscii("quote", quote);
+        long size = channel.size();
+        List<Long> offsets = new ArrayList<Long>();
+        offsets.add(Long.valueOf(0));
+
+        long position = 0;
+        long quotes = 0;
+        for (int i = 1; i < parts; i++) {
+            long target = size * i / parts;
+            if (target <= position) {
+                continue;
+            }
+            // Count quotes up to the target, then move on to the first line
+            // break that is not inside a quoted field.
+            while (position < size) {
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(windowSize, size - position));
+                int limit = buf.limit();
+                int j = 0;
+                boolean found = false;
+                for (; j < limit; j++) {
+                    byte b = buf.get(j);
+                    if (b == (byte) quote) {
+                        quotes++;
+                    } else if (b == LF && position + j >= target
+                            && quotes % 2 == 0) {
+                        found = true;
+                        j++;
+                        break;
+                    }
+                }
+                position += j;
+                if (found) {
+                    break;
+                }
+            }
+            if (position >= size) {
+                break;
+            }
+            offsets.add(Long.valueOf(position));
+        }
+        offsets.add(Long.valueOf(size));
+
+        long[] result = new long[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i).longValue();
+        }
+        return result;
+    }
+
+    /**
+     * Bytes are compared with the separator and quote, so both must be one
+     * byte that is never part of another character.
+     */
+    private static void checkAscii(String name, char c) {
+        if (c >= 0x80) {
+            throw new IllegalArgumentException("The " + name + " of a mapped "
+                    + "CSV file must be an ASCII character: " + c);
+        }
+    }
+
+    /**
+     * Returns true if ASCII characters are encoded as themselves and no
+     * other character uses bytes below 0x80, as in UTF-8 and the ISO-8859
+     * and windows-125x charsets.
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        if (!charset.canEncode()) {
+            return false;
+        }
+        String name = charset.name();
+        if (!name.equals("UTF-8") && !name.equals("US-ASCII")
+                && charset.newEncoder().maxBytesPerChar() > 1) {
+            return false;
+        }
+        byte[] ascii = new byte[0x80];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        String chars = new String(ascii, Charset.forName("US-ASCII"));
+        return Arrays.equals(ascii, chars.getBytes(charset));
+    }
+
+    public boolean hasNext() {
+        if (next == null && position < end) {
+            try {
+                next = readLine();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read CSV at offset "
+                        + position, e);
+            }
+        }
+        return next != null;
+    }
+
+    public String[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String[] line = next;
+        next = null;
+        return line;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                Math.min(windowSize, channel.size() - start));
+    }
+
+    private String[] readLine() throws IOException {
+        String[] line = parseLine();
+        if (line == null) {
+            // The line crosses the end of the window: map from its start
+            if (position == windowStart) {
+                throw new IOException("Line longer than " + windowSize
+                        + " bytes at offset " + position);
+            }
+            map(position);
+            line = parseLine();
+            if (line == null) {
+                throw new IOException("Line longer than " + windowSize
+                        + " bytes at offset " + position);
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Parses the line at the current position. Returns null without moving
+     * if the line is not complete in the current window.
+     */
+    private String[] parseLine() {
+        int limit = (int) Math.min(window.limit(), end - windowStart);
+        boolean atEnd = windowStart + limit >= end;
+        int i = (int) (position - windowStart);
+        int count = 0;
+
+        while (true) {
+            // Parse one column
+            int length = 0;
+            boolean quoted = i < limit && window.get(i) == quote;
+            if (quoted) {
+                i++;
+                while (true) {
+                    if (i >= limit) {
+                        if (!atEnd) {
+                            return null;
+                        }
+                        break;
+                    }
+                    byte b = window.get(i++);
+                    if (b == quote) {
+                        if (i < limit && window.get(i) == quote) {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                    if (count < maxColumns) {
+                        length = append(length, b);
+                    }
+                }
+            }
+            while (i < limit) {
+                byte b = window.get(i);
+                if (b == separator || b == LF || b == CR) {
+                    break;
+                }
+                if (count < maxColumns) {
+                    length = append(length, b);
+                }
+                i++;
+            }
+            if (i >= limit && !atEnd) {
+                return null;
+            }
+
+            if (count < maxColumns) {
+                columns[count] = new String(buffer, 0, length, charset);
+            }
+            count++;
+
+            if (i < limit && window.get(i) == separator) {
+                i++;
+                continue;
+            }
+            // End of line
+            if (i < limit && window.get(i) == CR) {
+                i++;
+                if (i >= limit && !atEnd) {
+                    // The LF may start the next window
+                    return null;
+                }
+            }
+            if (i < limit && window.get(i) == LF) {
+                i++;
+            }
+            break;
+        }
+
+        position = windowStart + i;
+        int size = Math.min(count, maxColumns);
+        String[] line = new String[size];
+        System.arraycopy(columns, 0, line, 0, size);
+        return line;
+    }
+
+    private int append(int length, byte b) {
+        if (length == buffer.length) {
+            byte[] bigger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+        buffer[length] = b;
+        return length + 1;
+    }
+}
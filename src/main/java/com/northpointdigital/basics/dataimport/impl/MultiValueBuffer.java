@@ -0,0 +1,81 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+
+/**
+ * Collects the values appended to multi-value (<code>string[]</code>)
+ * properties during one batch, so each property is read and written once
+ * per batch instead of once per appended value. The values are appended to
+ * the existing ones when the batch is flushed, in the order they were added.
+ */
+public class MultiValueBuffer {
+    private final Map<String, PendingProperty> pending = new LinkedHashMap<String, PendingProperty>();
+
+    /**
+     * Appends comma separated values to a property.
+     */
+    public void add(Node node, String name, String value)
+            throws RepositoryException {
+        String key = node.getPath() + "/" + name;
+        PendingProperty property = pending.get(key);
+        if (property == null) {
+            property = new PendingProperty(node, name);
+            pending.put(key, property);
+        }
+        for (String s : value.split(",")) {
+            property.values.add(s);
+        }
+    }
+
+    /**
+     * Drops the values added to a property, e.g. before it is removed.
+     */
+    public void remove(Node node, String name) throws RepositoryException {
+        pending.remove(node.getPath() + "/" + name);
+    }
+
+    /**
+     * Writes the collected values to the transient space.
+     */
+    public void flush(ValueFactory vf) throws RepositoryException {
+        for (PendingProperty property : pending.values()) {
+            Node node = property.node;
+            List<Value> values = new ArrayList<Value>();
+            if (node.hasProperty(property.name)) {
+                for (Value existing : node.getProperty(property.name)
+                        .getValues()) {
+                    values.add(existing);
+                }
+            }
+            for (String s : property.values) {
+                values.add(vf.createValue(s));
+            }
+            node.setProperty(property.name,
+                    values.toArray(new Value[values.size()]));
+        }
+        pending.clear();
+    }
+
+    public void clear() {
+        pending.clear();
+    }
+
+    private static class PendingProperty {
+        private final Node node;
+        private final String name;
+        private final List<String> values = new ArrayList<String>();
+
+        PendingProperty(Node node, String name) {
+            this.node = node;
+            this.name = name;
+        }
+    }
+}
@@ -1,79 +1,660 @@
 package com.northpointdigital.basics.dataimport.impl;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NodeType;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import com.northpointdigital.basics.exception.NorthpointException;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.day.cq.commons.jcr.JcrUtil;
+import com.northpointdigital.basics.dataimport.MergePlan;
+import com.northpointdigital.basics.dataimport.MergeReport;
 import com.northpointdigital.basics.dataimport.NodeMerger;
 
-@Component
+/**
+ * Merges a tree into another: nodes missing in the destination are copied,
+ * nodes present in both are descended into and, depending on the
+ * {@link PropertyPolicy}, get the source properties that differ. The
+ * top-level subtrees of the source are independent and are merged in
+ * parallel, each worker with its own session cloned from the caller's
+ * resolver. A worker saves whenever <code>merge.batch.size</code> writes or
+ * <code>merge.batch.bytes</code> of values are pending, across the subtrees
+ * it merges, and when it runs out of subtrees, so the transient space stays
+ * bounded and a flat tree is not saved once per node. An error loses the
+ * worker's unsaved changes: the failing subtree is reported as failed and
+ * the finished subtrees of the same batch are merged again. The report
+ * lists the committed subtrees, which {@link #resume} skips.
+ */
+@Component(metatype = true)
 @Service(value = NodeMerger.class)
 @Properties({
 	@Property(name = "service.pid", value = "com.northpointdigital.basics.dataimport.nodemerger", propertyPrivate = false),
 	@Property(name = "service.description", value = "Northpoint node merger service", propertyPrivate = false),
 	@Property(name = "service.vendor", value = "Northpoint", propertyPrivate = false) })
 public class NodeMergerImpl implements NodeMerger {
-    
+    private static Logger log = LoggerFactory.getLogger(NodeMergerImpl.class);
+
+    @Property(intValue = 4, label = "Merge threads", description = "Number of subtrees merged at the same time")
+    private static final String MERGE_THREADS = "merge.threads";
+
+    @Property(intValue = 1000, label = "Merge batch size", description = "Number of copied nodes and written properties per save; larger subtrees are copied node by node")
+    private static final String MERGE_BATCH_SIZE = "merge.batch.size";
+
+    @Property(longValue = 10485760L, label = "Merge batch bytes", description = "Size of copied and written property values per save")
+    private static final String MERGE_BATCH_BYTES = "merge.batch.bytes";
+
+    @Property(boolValue = false, label = "Stop on error", description = "Stop the whole merge when one subtree fails")
+    private static final String MERGE_STOP_ON_ERROR = "merge.stop.on.error";
+
+    /**
+     * Assumed time per copied node, descended node or written property
+     * until a merge has been measured.
+     */
+    private static final long DEFAULT_NANOS_PER_ITEM = 1000000L;
+
+    private int threads;
+    private int batchSize;
+    private long batchBytes;
+    private boolean stopOnError;
+    private ExecutorService mergeExecutor;
+
+    // Throughput of the finished merges, for the estimates of plan()
+    private final AtomicLong measuredItems = new AtomicLong();
+    private final AtomicLong measuredNanos = new AtomicLong();
+
+    @Activate
+    protected void activate(ComponentContext context) {
+	Dictionary<?, ?> props = context.getProperties();
+	threads = Math.max(1, toInt(props.get(MERGE_THREADS), 4));
+	batchSize = Math.max(1, toInt(props.get(MERGE_BATCH_SIZE), 1000));
+	batchBytes = Math.max(1, toLong(props.get(MERGE_BATCH_BYTES), 10485760L));
+	stopOnError = toBoolean(props.get(MERGE_STOP_ON_ERROR), false);
+	mergeExecutor = Executors.newFixedThreadPool(threads);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+	mergeExecutor.shutdownNow();
+    }
+
     public String[] merge(String origPath, String destPath, ResourceResolver rr) throws NorthpointException {
-        List<String> errors = new ArrayList<String>();
-        Session session = rr.adaptTo(Session.class);
-        
-        Resource origResource = rr.resolve(origPath);
-        if (origResource == null || origResource.equals("sling:nonexisting")) {
-            throw new NorthpointException(null, "Path not found: " + origPath);
-        }
-        
-        Resource destResource = rr.resolve(destPath);
-        if (destResource == null || destResource.getResourceType().equals("sling:nonexisting")) {
-            try {
-		JcrUtil.createPath(destPath, "cq:Page", session);
-	    } catch (RepositoryException e) {
-		throw new NorthpointException(e, "Cannot create node." + destPath);
+	return merge(origPath, destPath, rr, PropertyPolicy.SKIP).getErrors();
+    }
+
+    public MergeReport merge(String origPath, String destPath, ResourceResolver rr, PropertyPolicy policy)
+	    throws NorthpointException {
+	return merge(origPath, destPath, rr, policy, Collections.<String> emptySet());
+    }
+
+    public MergeReport resume(String origPath, String destPath, ResourceResolver rr, PropertyPolicy policy,
+	    MergeReport previous) throws NorthpointException {
+	return merge(origPath, destPath, rr, policy, new HashSet<String>(previous.getCommittedSubtrees()));
+    }
+
+    private MergeReport merge(String origPath, String destPath, ResourceResolver rr, PropertyPolicy policy,
+	    Set<String> committedSubtrees) throws NorthpointException {
+	MergeReport report = new MergeReport();
+	Session session = rr.adaptTo(Session.class);
+
+	final Queue<String> subtrees = new ConcurrentLinkedQueue<String>();
+	try {
+	    if (!session.nodeExists(origPath)) {
+		throw new NorthpointException(null, "Path not found: " + origPath);
+	    }
+	    if (!session.nodeExists(destPath)) {
+		try {
+		    JcrUtil.createPath(destPath, "cq:Page", session);
+		    session.save();
+		} catch (RepositoryException e) {
+		    throw new NorthpointException(e, "Cannot create node." + destPath);
+		}
+	    }
+	    NodeIterator iter = session.getNode(origPath).getNodes();
+	    while (iter.hasNext()) {
+		String path = iter.nextNode().getPath();
+		if (committedSubtrees.contains(path)) {
+		    report.addCommittedSubtree(path);
+		} else {
+		    subtrees.offer(path);
+		}
+	    }
+	} catch (RepositoryException e) {
+	    throw new NorthpointException(e, "Repository Exeption while reading nodes.");
+	}
+
+	// One session per worker; resolvers are cloned on this thread
+	List<ResourceResolver> resolvers = new ArrayList<ResourceResolver>();
+	try {
+	    int workers = Math.min(threads, subtrees.size());
+	    for (int i = 0; i < workers; i++) {
+		resolvers.add(rr.clone(null));
+	    }
+	} catch (LoginException e) {
+	    for (ResourceResolver resolver : resolvers) {
+		resolver.close();
+	    }
+	    throw new NorthpointException(e, "Cannot get session for merge.");
+	}
+
+	long start = System.nanoTime();
+	AtomicBoolean stopped = new AtomicBoolean();
+	List<Future<?>> futures = new ArrayList<Future<?>>();
+	for (ResourceResolver resolver : resolvers) {
+	    futures.add(mergeExecutor.submit(new MergeWorker(resolver, origPath, destPath, policy, subtrees,
+		    report, stopped)));
+	}
+	try {
+	    for (Future<?> future : futures) {
+		future.get();
+	    }
+	    long items = getItems(report);
+	    if (items > 0 && report.getErrors().length == 0) {
+		measuredItems.addAndGet(items);
+		measuredNanos.addAndGet(System.nanoTime() - start);
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new NorthpointException(e, "Merge interrupted.");
+	} catch (ExecutionException e) {
+	    throw new NorthpointException(e.getCause(), "Merge failed: " + e.getCause());
+	} finally {
+	    // Workers stop after the current node once the caller gave up, and
+	    // still close their resolvers
+	    stopped.set(true);
+	}
+
+	try {
+	    session.refresh(true);
+	} catch (RepositoryException e) {
+	    log.warn("Cannot refresh session after merge: " + e.getMessage());
+	}
+	log.info("Merged " + origPath + " into " + destPath + ": " + report);
+	return report;
+    }
+
+    /**
+     * Merges the subtree of one source node into the worker's batch, saving
+     * the batch whenever it is full. On an error the unsaved changes are
+     * discarded: the subtree is reported as failed, and the finished
+     * subtrees of the discarded batch are queued again. Counts reach the
+     * report only when their batch is saved, so a subtree merged again is not
+     * counted twice. The saved part of a failed subtree stays, which a later
+     * merge or resume completes. Returns false if the worker should stop.
+     */
+    private boolean mergeSubtree(Session session, String origPath, String destPath, String subtreePath,
+	    PropertyPolicy policy, MergeReport report, AtomicBoolean stopped, Batch batch, Queue<String> subtrees) {
+	try {
+	    // Sizes of the children of oversized nodes, from the walk that
+	    // measured the parent
+	    Map<String, long[]> sizes = new HashMap<String, long[]>();
+	    Queue<Node> nodes = new LinkedList<Node>();
+	    nodes.offer(session.getNode(subtreePath));
+	    while (!nodes.isEmpty()) {
+		if (stopped.get()) {
+		    throw new RepositoryException("Merge stopped.");
+		}
+		Node node = nodes.poll();
+		String destNodePath = destPath + node.getPath().substring(origPath.length());
+		if (!session.nodeExists(destNodePath)) {
+		    String destParentNodePath = destNodePath.substring(0, destNodePath.lastIndexOf('/'));
+		    Node destParentNode = session.getNode(destParentNodePath);
+		    long[] size = sizes.remove(node.getPath());
+		    if (size == null) {
+			size = measure(node, sizes);
+		    }
+		    if (size[0] > batchSize || size[1] > batchBytes) {
+			// Too big for one batch: copy this node and queue its children
+			long bytes = copyNode(node, destParentNode);
+			batch.counts.addNodesCopied(1);
+			batch.add(1, bytes);
+			NodeIterator iter = node.getNodes();
+			while (iter.hasNext()) {
+			    nodes.offer(iter.nextNode());
+			}
+		    } else {
+			if (!batch.fits(size[0], size[1])) {
+			    batch.save(session, report);
+			}
+			JcrUtil.copy(node, destParentNode, null);
+			batch.counts.addNodesCopied(size[0]);
+			batch.add(size[0], size[1]);
+		    }
+		} else {
+		    batch.counts.addNodeDescended();
+		    if (policy != PropertyPolicy.SKIP) {
+			long[] written = mergeProperties(node, session.getNode(destNodePath), policy, batch.counts,
+				null);
+			batch.add(written[0], written[1]);
+		    }
+		    NodeIterator iter = node.getNodes();
+		    while (iter.hasNext()) {
+			nodes.offer(iter.nextNode());
+		    }
+		}
+		if (batch.isFull()) {
+		    batch.save(session, report);
+		}
+	    }
+	    batch.subtrees.add(subtreePath);
+	    if (batch.isFull()) {
+		batch.save(session, report);
+	    }
+	} catch (RepositoryException e) {
+	    report.addFailedSubtree(subtreePath);
+	    report.addError("Subtree " + subtreePath + ": " + e.getMessage());
+	    if (stopOnError) {
+		stopped.set(true);
+	    }
+	    try {
+		for (String path : batch.discard(session)) {
+		    if (stopped.get()) {
+			report.addFailedSubtree(path);
+			report.addError("Subtree " + path + ": merge stopped before save.");
+		    } else {
+			subtrees.offer(path);
+		    }
+		}
+	    } catch (RepositoryException re) {
+		log.error("Cannot discard pending changes: " + re.getMessage());
+		return false;
 	    }
-        }
+	}
+	return !stopped.get();
+    }
 
-        Node origNode = origResource.adaptTo(Node.class);
-        Queue<Node> nodes = new LinkedList<Node>();
+    public MergePlan plan(String origPath, String destPath, ResourceResolver rr, PropertyPolicy policy)
+	    throws NorthpointException {
+	MergePlan plan = new MergePlan();
+	MergeReport report = new MergeReport();
+	Session session = rr.adaptTo(Session.class);
 	try {
-	    NodeIterator iter = origNode.getNodes();
+	    if (!session.nodeExists(origPath)) {
+		throw new NorthpointException(null, "Path not found: " + origPath);
+	    }
+	    Queue<Node> nodes = new LinkedList<Node>();
+	    NodeIterator iter = session.getNode(origPath).getNodes();
 	    while (iter.hasNext()) {
 		nodes.offer(iter.nextNode());
 	    }
 	    while (!nodes.isEmpty()) {
 		Node node = nodes.poll();
 		String destNodePath = destPath + node.getPath().substring(origPath.length());
-		String destParentNodePath = destPath + node.getParent().getPath().substring(origPath.length());
-		Node destParentNode = rr.resolve(destParentNodePath).adaptTo(Node.class);
-		Resource destNodeResource = rr.resolve(destNodePath);
-		if (destNodeResource == null || destNodeResource.getResourceType() == "sling:nonexisting") {
-		    JcrUtil.copy(node, destParentNode, null);
+		if (!session.nodeExists(destNodePath)) {
+		    long[] size = measure(node, null);
+		    plan.addCopy(node.getPath(), size[0], size[1]);
+		    report.addNodesCopied(size[0]);
 		} else {
+		    plan.addDescend(node.getPath());
+		    report.addNodeDescended();
+		    if (policy != PropertyPolicy.SKIP) {
+			mergeProperties(node, session.getNode(destNodePath), policy, report, plan);
+		    }
 		    iter = node.getNodes();
 		    while (iter.hasNext()) {
 			nodes.offer(iter.nextNode());
 		    }
 		}
 	    }
-	    
-	    session.save();
 	} catch (RepositoryException e) {
-	    throw new NorthpointException(e, "Repository Exeption while saving nodes.");
+	    throw new NorthpointException(e, "Repository Exeption while reading nodes.");
+	}
+
+	long items = measuredItems.get();
+	long nanosPerItem = items > 0 ? measuredNanos.get() / items : DEFAULT_NANOS_PER_ITEM;
+	plan.setEstimatedMillis(getItems(report) * nanosPerItem / 1000000L);
+	return plan;
+    }
+
+    /**
+     * Copies a node with its mixins and properties, but without its
+     * children. Returns the size of the copied property values.
+     */
+    private long copyNode(Node node, Node destParentNode) throws RepositoryException {
+	Node copy = destParentNode.addNode(node.getName(), node.getPrimaryNodeType().getName());
+	for (NodeType mixin : node.getMixinNodeTypes()) {
+	    copy.addMixin(mixin.getName());
+	}
+	long bytes = 0;
+	PropertyIterator iter = node.getProperties();
+	while (iter.hasNext()) {
+	    javax.jcr.Property property = iter.nextProperty();
+	    if (property.getDefinition().isProtected()) {
+		continue;
+	    }
+	    if (property.isMultiple()) {
+		copy.setProperty(property.getName(), property.getValues(), property.getType());
+	    } else {
+		copy.setProperty(property.getName(), property.getValue());
+	    }
+	    bytes += getSize(property);
+	}
+	return bytes;
+    }
+
+    private long getItems(MergeReport report) {
+	return report.getNodesCopied() + report.getNodesDescended() + report.getPropertiesWritten();
+    }
+
+    /**
+     * Returns the number of nodes of a subtree and the size of their property
+     * values. If a map is given, the sizes of the children of every node too
+     * big for one batch are put into it, so copying such a node child by
+     * child does not walk the subtree again.
+     */
+    private long[] measure(Node node, Map<String, long[]> childSizes) throws RepositoryException {
+	long nodes = 1;
+	long bytes = 0;
+	PropertyIterator props = node.getProperties();
+	while (props.hasNext()) {
+	    bytes += getSize(props.nextProperty());
+	}
+	List<Object[]> children = childSizes != null ? new ArrayList<Object[]>() : null;
+	NodeIterator iter = node.getNodes();
+	while (iter.hasNext()) {
+	    Node child = iter.nextNode();
+	    long[] size = measure(child, childSizes);
+	    nodes += size[0];
+	    bytes += size[1];
+	    if (children != null) {
+		children.add(new Object[] { child.getPath(), size });
+	    }
+	}
+	if (children != null && (nodes > batchSize || bytes > batchBytes)) {
+	    for (Object[] child : children) {
+		childSizes.put((String) child[0], (long[]) child[1]);
+	    }
+	}
+	return new long[] { nodes, bytes };
+    }
+
+    private long getSize(javax.jcr.Property property) throws RepositoryException {
+	long size = 0;
+	if (property.isMultiple()) {
+	    for (long length : property.getLengths()) {
+		size += Math.max(0, length);
+	    }
+	} else {
+	    size = Math.max(0, property.getLength());
+	}
+	return size;
+    }
+
+    /**
+     * Writes the properties of a source node that differ from those of the
+     * existing destination node, as far as the policy allows. Protected
+     * properties such as jcr:primaryType are never touched. If a plan is
+     * given, the properties are only added to it. Returns the number of
+     * properties written and the size of their values.
+     */
+    private long[] mergeProperties(Node node, Node destNode, PropertyPolicy policy, MergeReport report,
+	    MergePlan plan) throws RepositoryException {
+	long written = 0;
+	long bytes = 0;
+	PropertyIterator iter = node.getProperties();
+	while (iter.hasNext()) {
+	    javax.jcr.Property property = iter.nextProperty();
+	    if (property.getDefinition().isProtected()) {
+		continue;
+	    }
+	    String name = property.getName();
+	    if (destNode.hasProperty(name)) {
+		javax.jcr.Property destProperty = destNode.getProperty(name);
+		if (isEqual(property, destProperty)) {
+		    report.addPropertyUnchanged();
+		    continue;
+		}
+		if (policy == PropertyPolicy.DEST_WINS) {
+		    report.addPropertyKept();
+		    continue;
+		}
+	    }
+	    long size = getSize(property);
+	    if (plan != null) {
+		plan.addPropertyToWrite(size);
+	    } else {
+		// A single value cannot be replaced by a multi value in place
+		if (destNode.hasProperty(name) && property.isMultiple() != destNode.getProperty(name).isMultiple()) {
+		    destNode.getProperty(name).remove();
+		}
+		if (property.isMultiple()) {
+		    destNode.setProperty(name, property.getValues(), property.getType());
+		} else {
+		    destNode.setProperty(name, property.getValue());
+		}
+	    }
+	    report.addPropertyWritten();
+	    written++;
+	    bytes += size;
+	}
+	return new long[] { written, bytes };
+    }
+
+    private boolean isEqual(javax.jcr.Property property, javax.jcr.Property other) throws RepositoryException {
+	if (property.getType() != other.getType() || property.isMultiple() != other.isMultiple()) {
+	    return false;
+	}
+	if (!property.isMultiple()) {
+	    return isEqual(property.getValue(), other.getValue());
+	}
+	Value[] values = property.getValues();
+	Value[] otherValues = other.getValues();
+	if (values.length != otherValues.length) {
+	    return false;
+	}
+	for (int i = 0; i < values.length; i++) {
+	    if (!isEqual(values[i], otherValues[i])) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private boolean isEqual(Value value, Value other) throws RepositoryException {
+	if (value.getType() != PropertyType.BINARY) {
+	    return value.getString().equals(other.getString());
+	}
+	Binary binary = value.getBinary();
+	Binary otherBinary = other.getBinary();
+	try {
+	    if (binary.getSize() != otherBinary.getSize()) {
+		return false;
+	    }
+	    InputStream in = new BufferedInputStream(binary.getStream());
+	    InputStream otherIn = new BufferedInputStream(otherBinary.getStream());
+	    try {
+		int b;
+		while ((b = in.read()) != -1) {
+		    if (b != otherIn.read()) {
+			return false;
+		    }
+		}
+		return true;
+	    } finally {
+		in.close();
+		otherIn.close();
+	    }
+	} catch (IOException e) {
+	    throw new RepositoryException("Cannot compare binaries.", e);
+	} finally {
+	    binary.dispose();
+	    otherBinary.dispose();
+	}
+    }
+
+    private int toInt(Object value, int defaultValue) {
+	if (value instanceof Number) {
+	    return ((Number) value).intValue();
+	}
+	if (value != null) {
+	    try {
+		return Integer.parseInt(value.toString());
+	    } catch (NumberFormatException e) {
+		log.warn("Invalid number: " + value);
+	    }
+	}
+	return defaultValue;
+    }
+
+    private long toLong(Object value, long defaultValue) {
+	if (value instanceof Number) {
+	    return ((Number) value).longValue();
+	}
+	if (value != null) {
+	    try {
+		return Long.parseLong(value.toString());
+	    } catch (NumberFormatException e) {
+		log.warn("Invalid number: " + value);
+	    }
+	}
+	return defaultValue;
+    }
+
+    private boolean toBoolean(Object value, boolean defaultValue) {
+	if (value instanceof Boolean) {
+	    return ((Boolean) value).booleanValue();
+	}
+	return value != null ? Boolean.parseBoolean(value.toString()) : defaultValue;
+    }
+
+    /**
+     * Takes subtrees from the shared queue until it is empty.
+     */
+    private class MergeWorker implements Runnable {
+	private final ResourceResolver rr;
+	private final String origPath;
+	private final String destPath;
+	private final PropertyPolicy policy;
+	private final Queue<String> subtrees;
+	private final MergeReport report;
+	private final AtomicBoolean stopped;
+
+	MergeWorker(ResourceResolver rr, String origPath, String destPath, PropertyPolicy policy,
+		Queue<String> subtrees, MergeReport report, AtomicBoolean stopped) {
+	    this.rr = rr;
+	    this.origPath = origPath;
+	    this.destPath = destPath;
+	    this.policy = policy;
+	    this.subtrees = subtrees;
+	    this.report = report;
+	    this.stopped = stopped;
+	}
+
+	public void run() {
+	    Batch batch = new Batch();
+	    Session session = rr.adaptTo(Session.class);
+	    try {
+		String subtreePath;
+		while (!stopped.get() && (subtreePath = subtrees.poll()) != null) {
+		    if (!mergeSubtree(session, origPath, destPath, subtreePath, policy, report, stopped, batch,
+			    subtrees)) {
+			break;
+		    }
+		}
+		// Finished subtrees are saved even when the merge was stopped
+		batch.save(session, report);
+	    } catch (RepositoryException e) {
+		for (String path : batch.subtrees) {
+		    report.addFailedSubtree(path);
+		    report.addError("Subtree " + path + ": " + e.getMessage());
+		}
+		try {
+		    session.refresh(false);
+		} catch (RepositoryException re) {
+		    log.error("Cannot discard pending changes: " + re.getMessage());
+		}
+	    } finally {
+		rr.close();
+	    }
+	}
+    }
+
+    /**
+     * The unsaved changes of one worker, which may span several subtrees.
+     * A subtree is committed once the save after its last change succeeded;
+     * the counts of the changes reach the report with that save.
+     */
+    private class Batch {
+	private long writes;
+	private long bytes;
+	private final List<String> subtrees = new ArrayList<String>();
+	private MergeReport counts = new MergeReport();
+
+	void add(long writes, long bytes) {
+	    this.writes += writes;
+	    this.bytes += bytes;
+	}
+
+	boolean fits(long writes, long bytes) {
+	    return this.writes + writes <= batchSize && this.bytes + bytes <= batchBytes;
+	}
+
+	boolean isFull() {
+	    return writes >= batchSize || bytes >= batchBytes;
+	}
+
+	void save(Session session, MergeReport report) throws RepositoryException {
+	    session.save();
+	    report.addCounts(counts);
+	    for (String path : subtrees) {
+		report.addCommittedSubtree(path);
+	    }
+	    reset();
+	}
+
+	/**
+	 * Drops the unsaved changes and returns the finished subtrees that
+	 * were part of them.
+	 */
+	List<String> discard(Session session) throws RepositoryException {
+	    List<String> discarded = new ArrayList<String>(subtrees);
+	    reset();
+	    session.refresh(false);
+	    return discarded;
+	}
+
+	private void reset() {
+	    writes = 0;
+	    bytes = 0;
+	    subtrees.clear();
+	    counts = new MergeReport();
 	}
-	return errors.toArray(new String[errors.size()]);
     }
 }
@@ -0,0 +1,89 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+/**
+ * Single pass cleanup of generated node names and paths, run for every
+ * imported line. Strings that need no change are returned as they are;
+ * the others are built in a reused per-thread buffer.
+ */
+public final class NodeNames {
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        protected StringBuilder initialValue() {
+            return new StringBuilder(64);
+        }
+    };
+
+    private NodeNames() {
+    }
+
+    /**
+     * Keeps only letters a-z and A-Z, digits, '-' and '/', collapses runs of
+     * dashes and drops a leading and a trailing dash. Same result as
+     * <code>name.replaceAll("[^a-zA-Z0-9\\-\\/]", "").replaceAll("-+", "-")
+     * .replaceAll("^-", "").replaceAll("-$", "")</code>.
+     */
+    public static String sanitize(String name) {
+        int length = name.length();
+        if (isSanitized(name, length)) {
+            return name;
+        }
+
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c == '-') {
+                int last = sb.length() - 1;
+                if (last >= 0 && sb.charAt(last) != '-') {
+                    sb.append(c);
+                }
+            } else if (isNameChar(c)) {
+                sb.append(c);
+            }
+        }
+        int last = sb.length() - 1;
+        if (last >= 0 && sb.charAt(last) == '-') {
+            sb.setLength(last);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Removes ':' and '\'' from a path. In JCR, ':' means namespace.
+     */
+    public static String toNodePath(String path) {
+        if (path.indexOf(':') < 0 && path.indexOf('\'') < 0) {
+            return path;
+        }
+
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c != ':' && c != '\'') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isSanitized(String name, int length) {
+        if (length > 0
+                && (name.charAt(0) == '-' || name.charAt(length - 1) == '-')) {
+            return false;
+        }
+        char previous = 0;
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c == '-' ? previous == '-' : !isNameChar(c)) {
+                return false;
+            }
+            previous = c;
+        }
+        return true;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '/';
+    }
+}
@@ -0,0 +1,243 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.northpointdigital.basics.dataimport.DataImporter;
+import com.northpointdigital.basics.dataimport.TmpTreeCollectorMBean;
+
+/**
+ * Scheduled job removing the dry run trees below
+ * {@link DataImporter#TMP_ROOT} that are older than the configured age. The
+ * age is taken from the tree name (<code>&lt;millis&gt;-&lt;random&gt;</code>).
+ * Trees are removed leaves first and saved every
+ * <code>tmp.gc.batch.size</code> nodes, so large trees never end up in one
+ * commit. The counts are published as a JMX MBean.
+ */
+@Component(metatype = true)
+@Service(value = Runnable.class)
+@Properties({
+	@Property(name = "service.pid", value = "com.northpointdigital.basics.dataimport.tmptreecollector", propertyPrivate = false),
+	@Property(name = "service.description", value = "Northpoint data import tmp tree collector", propertyPrivate = false),
+	@Property(name = "service.vendor", value = "Northpoint", propertyPrivate = false),
+	@Property(name = "scheduler.period", longValue = 3600L, label = "Period", description = "Seconds between two runs"),
+	@Property(name = "scheduler.concurrent", boolValue = false, propertyPrivate = true) })
+public class TmpTreeCollector implements Runnable, TmpTreeCollectorMBean {
+    private static Logger log = LoggerFactory.getLogger(TmpTreeCollector.class);
+
+    private static final String OBJECT_NAME = "com.northpointdigital.basics.dataimport:type=TmpTreeCollector";
+
+    @Property(intValue = 48, label = "Maximum age", description = "Hours after which a dry run tree is removed")
+    private static final String MAX_AGE_HOURS = "tmp.gc.max.age.hours";
+
+    @Property(intValue = 500, label = "Batch size", description = "Number of nodes removed per save")
+    private static final String BATCH_SIZE = "tmp.gc.batch.size";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private long maxAgeHours;
+    private int batchSize;
+    private ObjectName mbeanName;
+
+    private final AtomicLong treesRemoved = new AtomicLong();
+    private final AtomicLong nodesRemoved = new AtomicLong();
+    private volatile long lastRunTreesRemoved;
+    private volatile long lastRunNodesRemoved;
+    private volatile long lastRunTime;
+    private volatile String lastError;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+	Dictionary<?, ?> props = context.getProperties();
+	maxAgeHours = Math.max(1, toInt(props.get(MAX_AGE_HOURS), 48));
+	batchSize = Math.max(1, toInt(props.get(BATCH_SIZE), 500));
+	try {
+	    mbeanName = new ObjectName(OBJECT_NAME);
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(
+		    new StandardMBean(this, TmpTreeCollectorMBean.class), mbeanName);
+	} catch (JMException e) {
+	    log.warn("Cannot register tmp tree collector MBean: " + e.getMessage());
+	    mbeanName = null;
+	}
+    }
+
+    @Deactivate
+    protected void deactivate() {
+	if (mbeanName == null) {
+	    return;
+	}
+	try {
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    if (server.isRegistered(mbeanName)) {
+		server.unregisterMBean(mbeanName);
+	    }
+	} catch (JMException e) {
+	    log.warn("Cannot unregister tmp tree collector MBean: " + e.getMessage());
+	}
+    }
+
+    public void run() {
+	long start = System.currentTimeMillis();
+	long expiry = start - maxAgeHours * 60 * 60 * 1000;
+	long trees = 0;
+	long nodes = 0;
+	ResourceResolver rr = null;
+	try {
+	    rr = resolverFactory.getAdministrativeResourceResolver(null);
+	    Session session = rr.adaptTo(Session.class);
+	    if (!session.nodeExists(DataImporter.TMP_ROOT)) {
+		return;
+	    }
+
+	    List<String> expired = new ArrayList<String>();
+	    NodeIterator iter = session.getNode(DataImporter.TMP_ROOT).getNodes();
+	    while (iter.hasNext()) {
+		Node node = iter.nextNode();
+		long created = getCreated(node.getName());
+		if (created > 0 && created < expiry) {
+		    expired.add(node.getPath());
+		}
+	    }
+
+	    for (String path : expired) {
+		if (Thread.currentThread().isInterrupted()) {
+		    break;
+		}
+		nodes += removeTree(session, path);
+		trees++;
+		treesRemoved.incrementAndGet();
+	    }
+	    lastError = null;
+	} catch (LoginException e) {
+	    lastError = "Cannot get session: " + e.getMessage();
+	    log.error(lastError);
+	} catch (RepositoryException e) {
+	    lastError = "Cannot remove dry run trees: " + e.getMessage();
+	    log.error(lastError, e);
+	} finally {
+	    if (rr != null) {
+		rr.close();
+	    }
+	    lastRunTreesRemoved = trees;
+	    lastRunNodesRemoved = nodes;
+	    lastRunTime = start;
+	    if (trees > 0) {
+		log.info("Removed " + trees + " dry run trees with " + nodes + " nodes below "
+			+ DataImporter.TMP_ROOT);
+	    }
+	}
+    }
+
+    /**
+     * Removes a tree leaves first, saving every batch. Returns the number
+     * of nodes removed.
+     */
+    private long removeTree(Session session, String path) throws RepositoryException {
+	long removed = 0;
+	while (session.nodeExists(path)) {
+	    long count = removeLeaves(session.getNode(path), batchSize);
+	    session.save();
+	    removed += count;
+	    nodesRemoved.addAndGet(count);
+	}
+	return removed;
+    }
+
+    /**
+     * Removes up to <code>max</code> nodes below and including a node,
+     * children before their parent. Returns the number of nodes removed.
+     */
+    private long removeLeaves(Node node, long max) throws RepositoryException {
+	long count = 0;
+	NodeIterator iter = node.getNodes();
+	while (iter.hasNext() && count < max) {
+	    count += removeLeaves(iter.nextNode(), max - count);
+	}
+	if (count < max && !node.hasNodes()) {
+	    node.remove();
+	    count++;
+	}
+	return count;
+    }
+
+    /**
+     * Returns the creation time in the name of a dry run tree, or -1.
+     */
+    private long getCreated(String name) {
+	int index = name.indexOf('-');
+	try {
+	    return Long.parseLong(index > 0 ? name.substring(0, index) : name);
+	} catch (NumberFormatException e) {
+	    return -1;
+	}
+    }
+
+    private int toInt(Object value, int defaultValue) {
+	if (value instanceof Number) {
+	    return ((Number) value).intValue();
+	}
+	if (value != null) {
+	    try {
+		return Integer.parseInt(value.toString());
+	    } catch (NumberFormatException e) {
+		log.warn("Invalid number: " + value);
+	    }
+	}
+	return defaultValue;
+    }
+
+    public long getTreesRemoved() {
+	return treesRemoved.get();
+    }
+
+    public long getNodesRemoved() {
+	return nodesRemoved.get();
+    }
+
+    public long getLastRunTreesRemoved() {
+	return lastRunTreesRemoved;
+    }
+
+    public long getLastRunNodesRemoved() {
+	return lastRunNodesRemoved;
+    }
+
+    public long getLastRunTime() {
+	return lastRunTime;
+    }
+
+    public long getMaxAgeHours() {
+	return maxAgeHours;
+    }
+
+    public String getLastError() {
+	return lastError;
+    }
+}
@@ -0,0 +1,20 @@
+package com.northpointdigital.basics.events.search;
+
+import java.util.List;
+
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * Regions of the events below an events root that have not ended yet. The
+ * index is built once per events root and then kept up to date from
+ * repository changes, so a lookup does not query the repository; it only
+ * checks that the caller can read the events behind the listed regions.
+ */
+public interface EventRegionIndex {
+	/**
+	 * Returns the sorted regions of the events below a path that end (or,
+	 * without an end date, start) today or later and that the user of the
+	 * resolver can read, or null if the events cannot be read.
+	 */
+	List<String> getUpcomingRegions(String eventsPath, ResourceResolver resolver);
+}
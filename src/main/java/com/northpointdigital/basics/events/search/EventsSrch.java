@@ -12,18 +12,33 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletRequestWrapper;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.scripting.SlingBindings;
+import com.northpointdigital.basics.events.search.impl.EventsSearchExecutor;
 import com.northpointdigital.basics.events.search.impl.FacetBuilderImpl;
 import com.northpointdigital.basics.search.utils.SearchUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.facets.Bucket;
+import com.day.cq.search.facets.Facet;
 import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
 
 public class EventsSrch  
 {
@@ -36,11 +51,25 @@ public class EventsSrch
 	
 	private final String COUNCIL_SPE_PATH = "/etc/tags/";
 	private static String EVENTS_PROP="jcr:content/cq:tags";
+	private static final String REGION_PROP = "jcr:content/data/region";
+	private static final String START_PROP = "jcr:content/data/start";
+	
+	/**
+	 * Keys of the region and start month (yyyy-MM) counts in
+	 * facetsWithCount, next to the tag names, which cannot contain a '/'.
+	 */
+	public static final String REGION_COUNTS = REGION_PROP;
+	public static final String MONTH_COUNTS = START_PROP;
+	
+	public static final int DEFAULT_PAGE_SIZE = 20;
+	public static final int MAX_PAGE_SIZE = 100;
 	
 	
  	private SearchResultsInfo searchResultsInfo;
  	int propertyCounter = 1;
  	LinkedHashMap<String, String> searchQuery = new LinkedHashMap<String, String>();
+	private Map<String, Long> tagCounts = new HashMap<String, Long>();
+	private boolean facetCounts = false;
 	
 	// Which return the object of Facets as Well as the Results;
 	
@@ -49,43 +78,208 @@ public class EventsSrch
 		this.queryBuilder = builder;
 	}
 	
+	/**
+	 * Whether to count the hits per tag, region and start month. Off by
+	 * default: the query then stops after the page and the hit count is a
+	 * guess, so the search does not slow down as the calendar grows. The
+	 * counts need the whole result, which also makes the hit count exact.
+	 */
+	public void setFacetCounts(boolean facetCounts){
+		this.facetCounts = facetCounts;
+	}
+	
 	public void search(String q,String[] tags,String offset, String month,String year, String startdtRange, String enddtRange, String region,String path,String facetsPath )
 	{
+		search(q,tags,offset,null,month,year,startdtRange,enddtRange,region,path,facetsPath);
+	}
+	
+	/**
+	 * Searches one page of events. The limit defaults to DEFAULT_PAGE_SIZE
+	 * and is capped at MAX_PAGE_SIZE.
+	 * Facets and regions come from the facet cache and the region index.
+	 * When they are not available there, they are read on the
+	 * EventsSearchExecutor, each with its own session, while the results are
+	 * searched; a part that is not done within the executor timeout is left
+	 * out of the response.
+	 * The hit counts per tag, region and start month come from the facets
+	 * of the results query if setFacetCounts() turned them on.
+	 */
+	public void search(String q,String[] tags,String offset,String limit, String month,String year, String startdtRange, String enddtRange, String region,final String path,final String facetsPath )
+	{
+		EventsSearchExecutor executor = getService(EventsSearchExecutor.class);
+		long deadline = System.currentTimeMillis() + (executor!=null ? executor.getTimeout() : 0);
+		
+		// The service caches the facet trees
+		FacetBuilder service = getService(FacetBuilder.class);
+		final FacetBuilder facetBuilder = service!=null ? service : new FacetBuilderImpl();
+		final EventRegionIndex regionIndex = getService(EventRegionIndex.class);
+		
+		ReadTask<Map<String,List<FacetsInfo>>> facetsTask = new ReadTask<Map<String,List<FacetsInfo>>>() {
+			protected Map<String,List<FacetsInfo>> read(ResourceResolver resolver) {
+				return createFacets(facetBuilder, withResolver(resolver), facetsPath);
+			}
+		};
+		ReadTask<List<String>> regionsTask = new ReadTask<List<String>>() {
+			protected List<String> read(ResourceResolver resolver) {
+				return eventRegions(resolver, path);
+			}
+		};
+		
+		// Only what is not in memory is worth another session and thread
+		Map<String,List<FacetsInfo>> cachedFacets = getCachedFacets(facetBuilder, facetsPath);
+		Future<Map<String,List<FacetsInfo>>> facets = null;
+		if(cachedFacets==null){
+			facets = fork(executor, facetsTask);
+		}
+		List<String> indexedRegions = null;
+		if(regionIndex!=null){
+			indexedRegions = regionIndex.getUpcomingRegions(path, slingRequest.getResourceResolver());
+		}
+		Future<List<String>> regions = null;
+		if(indexedRegions==null){
+			regions = fork(executor, regionsTask);
+		}
+		
 		try {
-			createFacets(facetsPath);
-			eventResults(q,offset,month,year,startdtRange,enddtRange,region,tags,path);
-			
-			// Don't delete this code if in future client need count for the tagging just enable this functionality.
-			// searchResultsInfo = SearchUtils.combineSearchTagsCounts(searchResultsInfo,facetAndTags);
-			
+			eventResults(q,offset,limit,month,year,startdtRange,enddtRange,region,tags,path);
 		} catch (RepositoryException e) {
 			log.error("Error Generated in the search() of EventSrch Class");
 			e.printStackTrace();
 		}
+		
+		facetAndTags = cachedFacets!=null ? cachedFacets
+				: join(facets, facetsTask, deadline, new HashMap<String,List<FacetsInfo>>(), "facets");
+		List<String> upcomingRegions = indexedRegions!=null ? indexedRegions
+				: join(regions, regionsTask, deadline, new ArrayList<String>(), "regions");
+		if(searchResultsInfo!=null){
+			searchResultsInfo.setRegion(upcomingRegions);
+			if(facetAndTags!=null){
+				if(facetCounts){
+					addTagCounts();
+				}
+				searchResultsInfo = SearchUtils.combineSearchTagsCounts(searchResultsInfo,facetAndTags,selectedTagIds(tags));
+			}
+		}
 	}
 	
 	public Map<String,List<FacetsInfo>> getFacets() {
 		return facetAndTags;
 	}
 	
-	private void createFacets(String facetPath) throws RepositoryException{
-		FacetBuilder facetBuilder = new FacetBuilderImpl();
+	private Map<String,List<FacetsInfo>> createFacets(FacetBuilder facetBuilder, SlingHttpServletRequest request, String facetPath) {
+		Map<String,List<FacetsInfo>> facets = new HashMap<String,List<FacetsInfo>>();
 		if(facetPath!=null && !facetPath.isEmpty()){
-			facetAndTags = facetBuilder.getFacets(slingRequest, queryBuilder, COUNCIL_SPE_PATH+facetPath );
+			facets = facetBuilder.getFacets(request, queryBuilder, COUNCIL_SPE_PATH+facetPath );
 		}
-		if(facetAndTags==null){
-			facetAndTags = facetBuilder.getFacets(slingRequest, queryBuilder, FACETS_PATH );
+		if(facets==null){
+			facets = facetBuilder.getFacets(request, queryBuilder, FACETS_PATH );
 		}
+		return facets;
 	}
 	
+	/**
+	 * The facets createFacets() would return if they are cached, else null.
+	 */
+	private Map<String,List<FacetsInfo>> getCachedFacets(FacetBuilder facetBuilder, String facetPath) {
+		if(facetPath==null || facetPath.isEmpty()){
+			return new HashMap<String,List<FacetsInfo>>();
+		}
+		return facetBuilder.getCachedFacets(slingRequest, COUNCIL_SPE_PATH+facetPath);
+	}
+	
+	/**
+	 * The request as seen by a search part, with the part's resolver.
+	 */
+	private SlingHttpServletRequest withResolver(final ResourceResolver resolver) {
+		if(resolver==slingRequest.getResourceResolver()){
+			return slingRequest;
+		}
+		return new SlingHttpServletRequestWrapper(slingRequest) {
+			public ResourceResolver getResourceResolver() {
+				return resolver;
+			}
+		};
+	}
+	
+	/**
+	 * Starts a search part on its own clone of the request resolver. Returns
+	 * null when the part has to run on the request thread: there is no
+	 * executor, it is full or the resolver cannot be cloned.
+	 */
+	private <T> Future<T> fork(EventsSearchExecutor executor, ReadTask<T> task) {
+		if(executor==null){
+			return null;
+		}
+		try {
+			task.resolver = slingRequest.getResourceResolver().clone(null);
+		} catch (LoginException e) {
+			log.warn("Cannot clone the request resolver: " +e.getMessage());
+			return null;
+		}
+		try {
+			return executor.submit(task);
+		} catch (RejectedExecutionException e) {
+			log.debug("Events search executor is full");
+			task.resolver.close();
+			task.resolver = null;
+			return null;
+		}
+	}
 	
-	private void eventResults(String q,String offset,String month,String year, String startdtRange, String enddtRange,String region,String[] tags, String path) throws RepositoryException{
+	private <T> T join(Future<T> future, ReadTask<T> task, long deadline, T fallback, String name) {
+		try {
+			if(future==null){
+				return task.read(slingRequest.getResourceResolver());
+			}
+			return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			task.cancel(future);
+			log.warn("Events search left out the " +name +", not read in time");
+		} catch (InterruptedException e) {
+			task.cancel(future);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.error("Cannot read the events search " +name, e.getCause());
+		} catch (RuntimeException e) {
+			log.error("Cannot read the events search " +name, e);
+		}
+		return fallback;
+	}
+	
+	/**
+	 * A search part, run on a resolver that it closes when done. A part
+	 * cancelled before it started closes the resolver in cancel().
+	 */
+	private abstract static class ReadTask<T> implements Callable<T> {
+		private ResourceResolver resolver;
+		private final AtomicBoolean started = new AtomicBoolean();
+		
+		public T call() {
+			if(!started.compareAndSet(false, true)){
+				return null;
+			}
+			try {
+				return read(resolver);
+			} finally {
+				resolver.close();
+			}
+		}
+		
+		void cancel(Future<T> future) {
+			future.cancel(true);
+			if(started.compareAndSet(false, true)){
+				resolver.close();
+			}
+		}
+		
+		protected abstract T read(ResourceResolver resolver);
+	}
+	
+	
+	private void eventResults(String q,String offset,String limit,String month,String year, String startdtRange, String enddtRange,String region,String[] tags, String path) throws RepositoryException{
 
 		
 		this.searchResultsInfo = new SearchResultsInfo();
-		
-		// Generate Regions
-		searchResultsInfo.setRegion(eventRegions(path));
 
 		if(q!=null && !q.isEmpty()){
 			log.info("Search Query Term [" +q +"]");
@@ -94,7 +288,14 @@ public class EventsSrch
 		searchQuery.put("type", "cq:Page");
 		searchQuery.put("path",path);
 		searchQuery.put("1_property",EVENTS_PROP);
-		searchQuery.put("p.limit", "-1");
+		long start = toLong(offset, 0);
+		long size = toLong(limit, DEFAULT_PAGE_SIZE);
+		int pageSize = size==0 ? DEFAULT_PAGE_SIZE : (int) Math.min(size, MAX_PAGE_SIZE);
+		searchQuery.put("p.offset", String.valueOf(start));
+		searchQuery.put("p.limit", String.valueOf(pageSize));
+		if(!facetCounts){
+			searchQuery.put("p.guessTotal", "true");
+		}
 		searchQuery.put("orderby","@jcr:content/data/start");
 		searchQuery.put("orderby.sort", "asc");
 		log.debug("Query Parameter : " +q);
@@ -115,16 +316,105 @@ public class EventsSrch
 			addRegionToQuery(region);
 		}
 		
+		// Property predicates without a value do not filter, they only ask for the facets
+		String regionFacet = null;
+		String startFacet = null;
+		if(facetCounts){
+			regionFacet = ++propertyCounter+"_property";
+			searchQuery.put(regionFacet, REGION_PROP);
+			startFacet = ++propertyCounter+"_property";
+			searchQuery.put(startFacet, START_PROP);
+		}
+		
 		List<String> relts = new ArrayList<String>(); 
-		List<Hit>hits = SearchUtils.performContentSearch(searchQuery,slingRequest,this.queryBuilder);
-		if(hits!=null && !hits.isEmpty()){
-			for(int i=0;i<hits.size();i++){
-				Hit ht = hits.get(i);
-				String pth = ht.getNode().isNodeType("cq:Page")?ht.getPath():ht.getPath();
-				relts.add(pth);
-			}
-		}		
+		SearchResult result = SearchUtils.performSearch(searchQuery,slingRequest,this.queryBuilder);
+		for(Hit ht : result.getHits()){
+			relts.add(ht.getPath());
+		}
 		searchResultsInfo.setResults(relts);
+		if(facetCounts){
+			addFacetCounts(result, regionFacet, startFacet);
+		}
+		searchResultsInfo.setSearchResults(result);
+		searchResultsInfo.setHitCounts(result.getTotalMatches());
+		searchResultsInfo.setOffset(start);
+		searchResultsInfo.setPageSize(pageSize);
+		searchResultsInfo.setHasMore(result.hasMore());
+	}
+	
+	private void addFacetCounts(SearchResult result, String regionFacet, String startFacet){
+		try {
+			Map<String, Facet> facets = result.getFacets();
+			tagCounts = bucketCounts(facets.get("1_property"), 0);
+			searchResultsInfo.getFacetsWithCount().put(REGION_COUNTS, bucketCounts(facets.get(regionFacet), 0));
+			// Dates are yyyy-MM-ddTHH:mm:ss.SSSZ, the month is the first 7 characters
+			searchResultsInfo.getFacetsWithCount().put(MONTH_COUNTS, bucketCounts(facets.get(startFacet), 7));
+		} catch (RepositoryException e) {
+			log.error("Cannot read the events search facets: " +e.getMessage());
+		}
+	}
+	
+	private static long toLong(String value, long defaultValue){
+		if(value==null || value.isEmpty()){
+			return defaultValue;
+		}
+		try{
+			long l = Long.parseLong(value.trim());
+			return l>=0 ? l : defaultValue;
+		}catch(NumberFormatException e){
+			log.debug("Not a number: " +value);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Adds up the bucket counts of a facet, by bucket value or by its first
+	 * characters when a length is given.
+	 */
+	private static Map<String, Long> bucketCounts(Facet facet, int length){
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		if(facet==null){
+			return counts;
+		}
+		for(Bucket bucket : facet.getBuckets()){
+			String value = bucket.getValue();
+			if(length>0 && value.length()>length){
+				value = value.substring(0, length);
+			}
+			Long count = counts.get(value);
+			counts.put(value, (count!=null ? count : 0L) + bucket.getCount());
+		}
+		return counts;
+	}
+	
+	private Set<String> selectedTagIds(String[] tags){
+		Set<String> tagIds = new HashSet<String>();
+		for(String tag : tags){
+			try{
+				tagIds.add(URLDecoder.decode(tag,"UTF-8"));
+			}catch(UnsupportedEncodingException e){
+				log.error("Tag could not be decoded: " +tag);
+			}
+		}
+		return tagIds;
+	}
+	
+	/**
+	 * Counts per facet title, for SearchUtils.combineSearchTagsCounts().
+	 */
+	private void addTagCounts(){
+		for(Map.Entry<String, List<FacetsInfo>> facet : facetAndTags.entrySet()){
+			Map<String, Long> counts = new HashMap<String, Long>();
+			for(FacetsInfo info : facet.getValue()){
+				Long count = tagCounts.get(info.getFacetsTagId());
+				if(count!=null){
+					counts.put(info.getFacetsTitle(), count);
+				}
+			}
+			if(!counts.isEmpty()){
+				searchResultsInfo.getFacetsWithCount().put(facet.getKey(), counts);
+			}
+		}
 	}
 	
 	public SearchResultsInfo getSearchResultsInfo(){
@@ -210,7 +500,10 @@ public class EventsSrch
 		
 	}
 	
-	private List<String> eventRegions(String path) {
+	/**
+	 * Reads the regions with a query, when the region index is not available.
+	 */
+	private List<String> eventRegions(ResourceResolver resolver, String path) {
 		Map<String, String> region = new LinkedHashMap<String, String>();
 		
 		// As compare after() depends on the today which keeps on changing as it has a time format in it
@@ -231,7 +524,7 @@ public class EventsSrch
 		Date eventDate = null;
 		String eventDt = "";
 		try {
-			List<Hit> hits = SearchUtils.performContentSearch(region,slingRequest,this.queryBuilder);
+			List<Hit> hits = SearchUtils.performSearch(region,resolver,this.queryBuilder).getHits();
 			for(Hit hts : hits) {
 				eventDate = null;
 				eventDt = "";
@@ -276,5 +569,13 @@ public class EventsSrch
 		
 	}
 	
+	private <T> T getService(Class<T> type){
+		SlingBindings bindings = (SlingBindings) slingRequest.getAttribute(SlingBindings.class.getName());
+		if(bindings==null || bindings.getSling()==null){
+			return null;
+		}
+		return bindings.getSling().getService(type);
+	}
+	
 
 }
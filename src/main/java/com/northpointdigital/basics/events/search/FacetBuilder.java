@@ -11,4 +11,10 @@ import com.day.cq.search.QueryBuilder;
 
 public interface FacetBuilder{
 	Map<String, List<FacetsInfo>> getFacets(SlingHttpServletRequest slingRequest, QueryBuilder queryBuilder, String FACETS_PATH);	
+	
+	/**
+	 * Returns the facets like getFacets() if they are cached, or null
+	 * without reading the repository.
+	 */
+	Map<String, List<FacetsInfo>> getCachedFacets(SlingHttpServletRequest slingRequest, String FACETS_PATH);
 }
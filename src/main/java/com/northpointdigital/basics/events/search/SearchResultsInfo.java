@@ -17,6 +17,9 @@ public class SearchResultsInfo {
 	private SearchResult searchResults;
 	private List<Hit> hits;
 	private List<String> regions;
+	private long offset;
+	private int pageSize;
+	private boolean more;
 	
 	public SearchResultsInfo(){
 		results = new ArrayList<String>();
@@ -78,5 +81,33 @@ public class SearchResultsInfo {
 		return this.regions;
 	}
 	
+	public void setOffset(long offset){
+		this.offset = offset;
+	}
+	
+	public long getOffset(){
+		return offset;
+	}
+	
+	public void setPageSize(int pageSize){
+		this.pageSize = pageSize;
+	}
+	
+	public int getPageSize(){
+		return pageSize;
+	}
+	
+	/**
+	 * Whether there are hits after this page. The hit count may be a guess,
+	 * this is not.
+	 */
+	public void setHasMore(boolean more){
+		this.more = more;
+	}
+	
+	public boolean hasMore(){
+		return more;
+	}
+	
 
 }
@@ -0,0 +1,330 @@
+package com.northpointdigital.basics.events.search.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.jcr.api.SlingRepository;
+import com.northpointdigital.basics.events.search.EventRegionIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+
+/**
+ * Keeps, per events root, the region and end day of every event page. The
+ * root is read with one query on its first lookup; after that a JCR
+ * observation listener re-reads only the event pages that changed. Lookups
+ * filter the regions by the current day, so the list rolls over at midnight
+ * without a query, and by the caller's access: a region is listed if the
+ * caller can read one of its upcoming event pages. Only the most recently
+ * used roots are kept.
+ */
+@Component
+@Service
+public class EventRegionIndexImpl implements EventRegionIndex {
+	private static Logger log = LoggerFactory.getLogger(EventRegionIndexImpl.class);
+
+	private static final String DATA_PATH = "jcr:content/data";
+	private static final int MAX_ROOTS = 20;
+
+	@Reference
+	private SlingRepository repository;
+
+	@Reference
+	private QueryBuilder queryBuilder;
+
+	private Session session;
+	private final Map<String, RootIndex> roots = new ConcurrentHashMap<String, RootIndex>();
+
+	@Activate
+	protected void activate() throws RepositoryException {
+		session = repository.loginAdministrative(null);
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		try {
+			ObservationManager observation = session.getWorkspace().getObservationManager();
+			for (RootIndex root : roots.values()) {
+				observation.removeEventListener(root);
+			}
+		} catch (RepositoryException e) {
+			log.warn("Cannot remove event region listeners: " + e.getMessage());
+		}
+		roots.clear();
+		session.logout();
+	}
+
+	public List<String> getUpcomingRegions(String eventsPath, ResourceResolver resolver) {
+		Session userSession = resolver.adaptTo(Session.class);
+		try {
+			// Nothing is indexed for roots the caller cannot see
+			if (!userSession.nodeExists(eventsPath)) {
+				return new ArrayList<String>();
+			}
+		} catch (RepositoryException e) {
+			return null;
+		}
+		RootIndex root = roots.get(eventsPath);
+		if (root == null) {
+			root = build(eventsPath);
+		}
+		if (root == null) {
+			return null;
+		}
+		root.lastUsed = System.currentTimeMillis();
+
+		List<String> regions = new ArrayList<String>();
+		for (Map.Entry<String, List<String>> entry : root.getUpcomingEvents(toDay(Calendar.getInstance()))
+				.entrySet()) {
+			for (String pagePath : entry.getValue()) {
+				try {
+					if (userSession.nodeExists(pagePath)) {
+						regions.add(entry.getKey());
+						break;
+					}
+				} catch (RepositoryException e) {
+					log.debug("Cannot read event page " + pagePath + ": " + e.getMessage());
+				}
+			}
+		}
+		return regions;
+	}
+
+	private synchronized RootIndex build(String eventsPath) {
+		RootIndex root = roots.get(eventsPath);
+		if (root != null) {
+			return root;
+		}
+		if (roots.size() >= MAX_ROOTS) {
+			evictLeastUsed();
+		}
+		long startTime = System.nanoTime();
+		root = new RootIndex();
+		try {
+			// Listen first, so no change between the query and the
+			// registration is lost
+			session.getWorkspace().getObservationManager().addEventListener(root,
+					Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED | Event.PROPERTY_ADDED
+							| Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, eventsPath, true, null, null, false);
+
+			Map<String, String> predicates = new HashMap<String, String>();
+			predicates.put("type", "cq:Page");
+			predicates.put("path", eventsPath);
+			predicates.put("p.limit", "-1");
+			Query query = queryBuilder.createQuery(PredicateGroup.create(predicates), session);
+			for (Hit hit : query.getResult().getHits()) {
+				root.update(hit.getPath(), hit.getNode());
+			}
+			roots.put(eventsPath, root);
+		} catch (RepositoryException e) {
+			log.error("Cannot index event regions below " + eventsPath + ": " + e.getMessage());
+			try {
+				session.getWorkspace().getObservationManager().removeEventListener(root);
+			} catch (RepositoryException re) {
+				log.warn("Cannot remove event region listener: " + re.getMessage());
+			}
+			return null;
+		}
+		log.debug("Indexed event regions below " + eventsPath + " in "
+				+ (System.nanoTime() - startTime) / 1000000 + " ms");
+		return root;
+	}
+
+	private void evictLeastUsed() {
+		String leastUsed = null;
+		long lastUsed = Long.MAX_VALUE;
+		for (Map.Entry<String, RootIndex> entry : roots.entrySet()) {
+			if (entry.getValue().lastUsed < lastUsed) {
+				leastUsed = entry.getKey();
+				lastUsed = entry.getValue().lastUsed;
+			}
+		}
+		RootIndex root = roots.remove(leastUsed);
+		try {
+			session.getWorkspace().getObservationManager().removeEventListener(root);
+		} catch (RepositoryException e) {
+			log.warn("Cannot remove event region listener: " + e.getMessage());
+		}
+		log.debug("Dropped event regions below " + leastUsed);
+	}
+
+	/**
+	 * Returns a day as yyyyMMdd in the default time zone.
+	 */
+	private static int toDay(Calendar cal) {
+		return cal.get(Calendar.YEAR) * 10000 + (cal.get(Calendar.MONTH) + 1) * 100
+				+ cal.get(Calendar.DAY_OF_MONTH);
+	}
+
+	/**
+	 * The event pages of one events root with their region and last day.
+	 */
+	private class RootIndex implements EventListener {
+		private final Map<String, Object[]> events = new HashMap<String, Object[]>();
+		private int upcomingDay;
+		private Map<String, List<String>> upcoming;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		/**
+		 * Returns the page paths of the events ending today or later, by
+		 * region in region order. The map is not changed afterwards.
+		 */
+		synchronized Map<String, List<String>> getUpcomingEvents(int today) {
+			if (upcoming == null || upcomingDay != today) {
+				Map<String, List<String>> regions = new TreeMap<String, List<String>>();
+				for (Map.Entry<String, Object[]> event : events.entrySet()) {
+					if (((Integer) event.getValue()[1]).intValue() >= today) {
+						String region = (String) event.getValue()[0];
+						List<String> pagePaths = regions.get(region);
+						if (pagePaths == null) {
+							pagePaths = new ArrayList<String>();
+							regions.put(region, pagePaths);
+						}
+						pagePaths.add(event.getKey());
+					}
+				}
+				upcoming = Collections.unmodifiableMap(regions);
+				upcomingDay = today;
+			}
+			return upcoming;
+		}
+
+		/**
+		 * Reads the region and last day of an event page, or forgets the
+		 * page if it has none.
+		 */
+		synchronized void update(String pagePath, Node page) throws RepositoryException {
+			events.remove(pagePath);
+			upcoming = null;
+			if (!page.hasNode(DATA_PATH)) {
+				return;
+			}
+			Node data = page.getNode(DATA_PATH);
+			if (!data.hasProperty("region")) {
+				return;
+			}
+			Calendar date = null;
+			if (data.hasProperty("end")) {
+				date = data.getProperty("end").getDate();
+			} else if (data.hasProperty("start")) {
+				date = data.getProperty("start").getDate();
+			}
+			if (date != null) {
+				// JCR dates keep their stored offset; the day is the one of
+				// the default time zone
+				Calendar day = Calendar.getInstance();
+				day.setTimeInMillis(date.getTimeInMillis());
+				events.put(pagePath, new Object[] { data.getProperty("region").getString(),
+						Integer.valueOf(toDay(day)) });
+			}
+		}
+
+		/**
+		 * Reads a page and the pages below it, e.g. after a move.
+		 */
+		void updateTree(Node node) throws RepositoryException {
+			if (node.isNodeType("cq:Page")) {
+				update(node.getPath(), node);
+			}
+			NodeIterator iter = node.getNodes();
+			while (iter.hasNext()) {
+				Node child = iter.nextNode();
+				if (!child.getName().equals("jcr:content")) {
+					updateTree(child);
+				}
+			}
+		}
+
+		/**
+		 * Forgets a page and the pages below it.
+		 */
+		synchronized void remove(String path) {
+			Iterator<String> iter = events.keySet().iterator();
+			while (iter.hasNext()) {
+				String pagePath = iter.next();
+				if (pagePath.equals(path) || pagePath.startsWith(path + "/")) {
+					iter.remove();
+				}
+			}
+			upcoming = null;
+		}
+
+		public void onEvent(EventIterator iter) {
+			// Changes inside a page are read again for that page only; added
+			// or moved nodes may bring whole page trees
+			Set<String> pages = new HashSet<String>();
+			Set<String> trees = new HashSet<String>();
+			while (iter.hasNext()) {
+				try {
+					Event event = iter.nextEvent();
+					String path = event.getPath();
+					int index = path.indexOf("/jcr:content");
+					if (index >= 0) {
+						pages.add(path.substring(0, index));
+					} else if (event.getType() == Event.NODE_ADDED || event.getType() == Event.NODE_MOVED
+							|| event.getType() == Event.NODE_REMOVED) {
+						trees.add(path);
+					}
+				} catch (RepositoryException e) {
+					log.warn("Cannot read event: " + e.getMessage());
+				}
+			}
+			synchronized (EventRegionIndexImpl.this) {
+				try {
+					session.refresh(false);
+				} catch (RepositoryException e) {
+					log.warn("Cannot refresh event region session: " + e.getMessage());
+				}
+				for (String path : trees) {
+					try {
+						remove(path);
+						if (session.nodeExists(path)) {
+							updateTree(session.getNode(path));
+						}
+					} catch (RepositoryException e) {
+						log.warn("Cannot update event regions for " + path + ": " + e.getMessage());
+					}
+				}
+				for (String path : pages) {
+					try {
+						if (!session.nodeExists(path)) {
+							remove(path);
+						} else if (session.getNode(path).isNodeType("cq:Page")) {
+							update(path, session.getNode(path));
+						}
+					} catch (RepositoryException e) {
+						log.warn("Cannot update event regions for " + path + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.northpointdigital.basics.events.search.impl;
+
+import java.util.Dictionary;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded thread pool shared by the events searches, to run the
+ * independent parts of one search at the same time. When the pool and its
+ * queue are full, submit() refuses the task and the search runs it itself.
+ */
+@Service(value = EventsSearchExecutor.class)
+@Component(metatype = true)
+public class EventsSearchExecutor {
+	private static Logger log = LoggerFactory.getLogger(EventsSearchExecutor.class);
+
+	@Property(intValue = 8, label = "Search threads", description = "Number of search parts run at the same time")
+	private static final String SEARCH_THREADS = "events.search.threads";
+
+	@Property(intValue = 64, label = "Search queue size", description = "Number of search parts waiting for a thread")
+	private static final String SEARCH_QUEUE_SIZE = "events.search.queue.size";
+
+	@Property(longValue = 2000L, label = "Search timeout", description = "Time in milliseconds a search waits for its parts")
+	private static final String SEARCH_TIMEOUT = "events.search.timeout";
+
+	private ThreadPoolExecutor executor;
+	private long timeout;
+
+	@Activate
+	protected void activate(ComponentContext context) {
+		Dictionary<?, ?> props = context.getProperties();
+		int threads = Math.max(1, toInt(props.get(SEARCH_THREADS), 8));
+		int queueSize = Math.max(1, toInt(props.get(SEARCH_QUEUE_SIZE), 64));
+		timeout = Math.max(0, toLong(props.get(SEARCH_TIMEOUT), 2000L));
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new SearchThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @throws RejectedExecutionException if the pool and its queue are full
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
+	/**
+	 * Time in milliseconds a search waits for its parts.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	private int toInt(Object value, int defaultValue) {
+		return (int) toLong(value, defaultValue);
+	}
+
+	private long toLong(Object value, long defaultValue) {
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		if (value != null) {
+			try {
+				return Long.parseLong(value.toString());
+			} catch (NumberFormatException e) {
+				log.warn("Invalid number: " + value);
+			}
+		}
+		return defaultValue;
+	}
+
+	private static class SearchThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "events-search-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
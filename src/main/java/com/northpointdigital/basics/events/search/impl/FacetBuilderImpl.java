@@ -3,22 +3,30 @@ package com.northpointdigital.basics.events.search.impl;
 import java.util.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.jcr.api.SlingRepository;
 import com.northpointdigital.basics.events.search.EventsSrch;
 import com.northpointdigital.basics.events.search.FacetBuilder;
 import com.northpointdigital.basics.events.search.FacetsInfo;
@@ -33,11 +41,103 @@ import com.day.cq.search.facets.Facet;
 import com.day.cq.search.result.Hit;
 import com.day.cq.search.result.SearchResult;
 
+/**
+ * Builds the facets of a tag subtree. As a service, the facet trees are
+ * cached per user and facets path and dropped whenever a tag below
+ * /etc/tags changes; every caller gets its own copy, so checked flags and
+ * counts can be set per request.
+ */
 @Component
 @Service
 public class FacetBuilderImpl implements FacetBuilder{
 	private static Logger log = LoggerFactory.getLogger(FacetBuilderImpl.class);
+	
+	private static final String TAGS_ROOT = "/etc/tags";
+	private static final int MAX_CACHED_FACETS = 100;
+	
+	@Reference
+	private SlingRepository repository;
+	
+	private Session session;
+	private final AtomicLong invalidations = new AtomicLong();
+	private final Map<String, Map<String, List<FacetsInfo>>> cache = Collections.synchronizedMap(
+			new LinkedHashMap<String, Map<String, List<FacetsInfo>>>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				
+				protected boolean removeEldestEntry(Map.Entry<String, Map<String, List<FacetsInfo>>> eldest) {
+					return size() > MAX_CACHED_FACETS;
+				}
+			});
+	private final EventListener tagListener = new EventListener() {
+		public void onEvent(EventIterator events) {
+			invalidations.incrementAndGet();
+			cache.clear();
+		}
+	};
+	
+	@Activate
+	protected void activate() throws RepositoryException {
+		session = repository.loginAdministrative(null);
+		session.getWorkspace().getObservationManager().addEventListener(tagListener,
+				Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED | Event.PROPERTY_ADDED
+						| Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, TAGS_ROOT, true, null, null, false);
+	}
+	
+	@Deactivate
+	protected void deactivate() {
+		try {
+			session.getWorkspace().getObservationManager().removeEventListener(tagListener);
+		} catch (RepositoryException e) {
+			log.warn("Cannot remove tag listener: " + e.getMessage());
+		}
+		session.logout();
+		session = null;
+		cache.clear();
+	}
+	
 	public Map<String, List<FacetsInfo>> getFacets(SlingHttpServletRequest slingRequest, QueryBuilder queryBuilder, String FACETS_PATH ) {
+		// Not cached when created outside of OSGi
+		if (session == null) {
+			return buildFacets(slingRequest, FACETS_PATH);
+		}
+		String key = slingRequest.getResourceResolver().getUserID() + ":" + FACETS_PATH;
+		Map<String, List<FacetsInfo>> facets = cache.get(key);
+		if (facets == null) {
+			long generation = invalidations.get();
+			facets = buildFacets(slingRequest, FACETS_PATH);
+			if (facets == null) {
+				return null;
+			}
+			if (invalidations.get() == generation) {
+				cache.put(key, facets);
+			}
+		}
+		return copy(facets);
+	}
+	
+	public Map<String, List<FacetsInfo>> getCachedFacets(SlingHttpServletRequest slingRequest, String FACETS_PATH) {
+		if (session == null) {
+			return null;
+		}
+		Map<String, List<FacetsInfo>> facets = cache.get(slingRequest.getResourceResolver().getUserID() + ":"
+				+ FACETS_PATH);
+		return facets != null ? copy(facets) : null;
+	}
+	
+	private Map<String, List<FacetsInfo>> copy(Map<String, List<FacetsInfo>> facets) {
+		Map<String, List<FacetsInfo>> result = new HashMap<String, List<FacetsInfo>>();
+		for (Map.Entry<String, List<FacetsInfo>> entry : facets.entrySet()) {
+			List<FacetsInfo> tagItems = new ArrayList<FacetsInfo>(entry.getValue().size());
+			for (FacetsInfo info : entry.getValue()) {
+				tagItems.add(new FacetsInfo(info.getFacetsTitle(), info.getFacetsTagId(), info.isChecked(),
+						info.getCounts()));
+			}
+			result.put(entry.getKey(), tagItems);
+		}
+		return result;
+	}
+	
+	private Map<String, List<FacetsInfo>> buildFacets(SlingHttpServletRequest slingRequest, String FACETS_PATH) {
 		ResourceResolver resourceResolver = slingRequest.getResourceResolver();
 		log.debug("Building Facets ");
 		TagManager tagMgr = resourceResolver.adaptTo(TagManager.class);
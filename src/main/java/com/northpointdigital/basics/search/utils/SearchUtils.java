@@ -5,11 +5,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
 import com.northpointdigital.basics.events.search.FacetsInfo;
 import com.northpointdigital.basics.events.search.SearchResultsInfo;
 import com.northpointdigital.basics.search.DocHit;
@@ -29,6 +31,14 @@ import com.day.cq.tagging.TagManager;
 public class SearchUtils {
 	private static Logger log = LoggerFactory.getLogger(SearchUtils.class);
 	
+	/**
+	 * Sets the counts of facetsWithCount on the facets, and checks every
+	 * facet that has a count.
+	 *
+	 * @deprecated checks facets that were not selected; use
+	 *             {@link #combineSearchTagsCounts(SearchResultsInfo, Map, Set)}
+	 */
+	@Deprecated
 	public static SearchResultsInfo combineSearchTagsCounts(SearchResultsInfo searchResultsInfo,Map<String,List<FacetsInfo>> facetAndTags)
 	{
 		if(searchResultsInfo.getFacetsWithCount().isEmpty())
@@ -59,6 +69,45 @@ public class SearchUtils {
 		}
 		return searchResultsInfo;	
 	}
+	
+	/**
+	 * Sets the counts of facetsWithCount on the facets, and checks the
+	 * facets of the selected tag ids only.
+	 */
+	public static SearchResultsInfo combineSearchTagsCounts(SearchResultsInfo searchResultsInfo,Map<String,List<FacetsInfo>> facetAndTags,Set<String> selectedTagIds)
+	{
+		for(List<FacetsInfo> facetInfo : facetAndTags.values()){
+			for(FacetsInfo info : facetInfo){
+				info.setChecked(selectedTagIds.contains(info.getFacetsTagId()));
+			}
+		}
+		if(searchResultsInfo.getFacetsWithCount().isEmpty())
+		{
+			return searchResultsInfo;
+		}
+		Iterator <String> everyThingFacets=null;
+		try{
+			everyThingFacets = facetAndTags.keySet().iterator();
+		}catch(Exception e){
+			log.error("Exception Caught" +e.getMessage());
+		}
+		Map<String, Map<String, Long>> facetsWithCounts = searchResultsInfo.getFacetsWithCount();
+		while(everyThingFacets.hasNext()){
+			String facetName = everyThingFacets.next();
+			List <FacetsInfo> facetInfo = facetAndTags.get(facetName);
+			log.debug("Facets Name ["+facetsWithCounts.toString() +"]");
+			if(facetsWithCounts.containsKey(facetName)){
+				Map<String, Long> fwc = facetsWithCounts.get(facetName);
+				for(int i=0;i<facetInfo.size();i++) {
+					if(fwc.containsKey(facetInfo.get(i).getFacetsTitle())) {
+						facetInfo.get(i).setCount(fwc.get(facetInfo.get(i).getFacetsTitle()));
+					}
+				}
+			}
+			
+		}
+		return searchResultsInfo;	
+	}
 	public static List<Hit> performContentSearch(Map<String, String> map, SlingHttpServletRequest slingRequest, QueryBuilder builder) {
 		PredicateGroup predicateGroup = PredicateGroup.create(map);
 		Query query = builder.createQuery(predicateGroup,slingRequest.getResourceResolver().adaptTo(Session.class));
@@ -67,4 +116,18 @@ public class SearchUtils {
 		java.util.List<Hit> hits = searchResults.getHits();
 		return hits;
    }
+	
+	/**
+	 * Runs a query without excerpts and returns the whole result, so callers
+	 * can read the total and whether there are more hits than the page.
+	 */
+	public static SearchResult performSearch(Map<String, String> map, SlingHttpServletRequest slingRequest, QueryBuilder builder) {
+		return performSearch(map, slingRequest.getResourceResolver(), builder);
+	}
+	
+	public static SearchResult performSearch(Map<String, String> map, ResourceResolver resolver, QueryBuilder builder) {
+		PredicateGroup predicateGroup = PredicateGroup.create(map);
+		Query query = builder.createQuery(predicateGroup,resolver.adaptTo(Session.class));
+		return query.getResult();
+	}
 }
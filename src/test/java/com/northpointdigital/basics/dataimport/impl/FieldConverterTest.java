@@ -0,0 +1,147 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+
+import org.junit.Test;
+
+import com.northpointdigital.basics.exception.NorthpointException;
+
+public class FieldConverterTest {
+    @Test
+    public void forType() throws NorthpointException {
+        assertSame(FieldConverter.STRING, FieldConverter.forType(null));
+        assertSame(FieldConverter.STRING, FieldConverter.forType("string"));
+        assertSame(FieldConverter.STRING, FieldConverter.forType("string{x}"));
+        assertSame(FieldConverter.STRING_ARRAY,
+                FieldConverter.forType("string[]"));
+        assertSame(FieldConverter.BOOLEAN, FieldConverter.forType("boolean"));
+        assertSame(FieldConverter.LONG, FieldConverter.forType("long"));
+        assertSame(FieldConverter.DOUBLE, FieldConverter.forType("double"));
+        assertSame(FieldConverter.DECIMAL, FieldConverter.forType("decimal"));
+        assertSame(FieldConverter.URI_TYPE, FieldConverter.forType("uri"));
+        assertEquals("date{yyyy}",
+                FieldConverter.forType("date{yyyy}").getType());
+    }
+
+    @Test(expected = NorthpointException.class)
+    public void forTypeRejectsUnknownTypes() throws NorthpointException {
+        FieldConverter.forType("integer");
+    }
+
+    @Test(expected = NorthpointException.class)
+    public void forTypeRejectsInvalidDateFormats() throws NorthpointException {
+        FieldConverter.forType("date{q}");
+    }
+
+    @Test
+    public void string() throws NorthpointException {
+        assertNull(FieldConverter.STRING.convert(null));
+        assertEquals("", FieldConverter.STRING.convert(""));
+        assertEquals(" a ", FieldConverter.STRING.convert(" a "));
+    }
+
+    @Test
+    public void stringArray() throws NorthpointException {
+        assertNull(FieldConverter.STRING_ARRAY.convert(null));
+        assertEquals("", FieldConverter.STRING_ARRAY.convert(""));
+        assertEquals("a,b", FieldConverter.STRING_ARRAY.convert("a,b"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void stringArrayIsNotWrittenAsOneValue() throws Exception {
+        FieldConverter.STRING_ARRAY.toValue(null, "a,b");
+    }
+
+    @Test
+    public void booleanIsTrueOnlyForTrue() throws NorthpointException {
+        assertEquals(Boolean.TRUE, FieldConverter.BOOLEAN.convert("true"));
+        assertEquals(Boolean.TRUE, FieldConverter.BOOLEAN.convert("TRUE"));
+        assertEquals(Boolean.FALSE, FieldConverter.BOOLEAN.convert(null));
+        assertEquals(Boolean.FALSE, FieldConverter.BOOLEAN.convert(""));
+        assertEquals(Boolean.FALSE, FieldConverter.BOOLEAN.convert("yes"));
+    }
+
+    @Test
+    public void longValues() throws NorthpointException {
+        assertEquals(Long.valueOf(42), FieldConverter.LONG.convert(" 42 "));
+        assertEquals(Long.valueOf(-1), FieldConverter.LONG.convert("-1"));
+        assertEmptyIsNull(FieldConverter.LONG);
+        assertInvalid(FieldConverter.LONG, "4.2");
+        assertInvalid(FieldConverter.LONG, "12x");
+        assertInvalid(FieldConverter.LONG, "99999999999999999999");
+    }
+
+    @Test
+    public void doubleValues() throws NorthpointException {
+        assertEquals(Double.valueOf(4.5),
+                FieldConverter.DOUBLE.convert(" 4.5 "));
+        assertEquals(Double.valueOf(1000),
+                FieldConverter.DOUBLE.convert("1e3"));
+        assertEmptyIsNull(FieldConverter.DOUBLE);
+        assertInvalid(FieldConverter.DOUBLE, "4,5");
+        assertInvalid(FieldConverter.DOUBLE, "abc");
+    }
+
+    @Test
+    public void decimalValues() throws NorthpointException {
+        assertEquals(new BigDecimal("10.50"),
+                FieldConverter.DECIMAL.convert(" 10.50 "));
+        assertEmptyIsNull(FieldConverter.DECIMAL);
+        assertInvalid(FieldConverter.DECIMAL, "10,50");
+        assertInvalid(FieldConverter.DECIMAL, "1.2.3");
+    }
+
+    @Test
+    public void uriValues() throws NorthpointException {
+        assertEquals("http://example.com/a?b=c",
+                FieldConverter.URI_TYPE.convert(" http://example.com/a?b=c "));
+        assertEquals("/content/a",
+                FieldConverter.URI_TYPE.convert("/content/a"));
+        assertEmptyIsNull(FieldConverter.URI_TYPE);
+        assertInvalid(FieldConverter.URI_TYPE, "http://example.com/a b");
+        assertInvalid(FieldConverter.URI_TYPE, "http://[::1");
+    }
+
+    @Test
+    public void dateValues() throws NorthpointException {
+        FieldConverter converter = FieldConverter.forType("date{yyyy-MM-dd}");
+        Calendar cal = (Calendar) converter.convert("2014-03-15");
+        assertEquals(2014, cal.get(Calendar.YEAR));
+        assertEquals(Calendar.MARCH, cal.get(Calendar.MONTH));
+        assertEquals(15, cal.get(Calendar.DAY_OF_MONTH));
+        assertNull(converter.convert(null));
+        // Unlike the number types, an empty date is not skipped
+        assertInvalid(converter, "");
+        assertInvalid(converter, "15.03.2014");
+    }
+
+    @Test
+    public void dateUsesTheDefaultFormat() throws NorthpointException {
+        FieldConverter converter = FieldConverter.forType("date");
+        Calendar cal = (Calendar) converter.convert("2014-03-15T10:20:30.5Z");
+        assertEquals(2014, cal.get(Calendar.YEAR));
+        assertInvalid(converter, "2014-03-15");
+    }
+
+    private static void assertEmptyIsNull(FieldConverter converter)
+            throws NorthpointException {
+        assertNull(converter.convert(null));
+        assertNull(converter.convert(""));
+        assertNull(converter.convert("  "));
+    }
+
+    private static void assertInvalid(FieldConverter converter, String value) {
+        try {
+            converter.convert(value);
+            fail(converter.getType() + " accepted \"" + value + "\"");
+        } catch (NorthpointException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.northpointdigital.basics.dataimport.ImportMetrics;
+
+public class ImportPipelineTest {
+    /**
+     * Takes the first column as the name, after a random delay so that
+     * workers finish out of order.
+     */
+    private static final ImportPipeline.RowTransformer SLOW_TRANSFORMER =
+            new ImportPipeline.RowTransformer() {
+                public ImportRow transform(long lineNumber, String[] cols) {
+                    try {
+                        Thread.sleep(new Random().nextInt(3));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new ImportRow(lineNumber, cols[0], null, null);
+                }
+            };
+
+    @Test(timeout = 10000)
+    public void keepsLineOrderWithOneThread() {
+        assertInOrder(1, 200);
+    }
+
+    @Test(timeout = 10000)
+    public void keepsLineOrderWithSeveralThreads() {
+        assertInOrder(4, 500);
+    }
+
+    @Test(timeout = 10000)
+    public void skipsLinesWithoutTransformingThem() {
+        for (int threads = 1; threads <= 4; threads += 3) {
+            final AtomicInteger transformed = new AtomicInteger();
+            ImportPipeline pipeline = new ImportPipeline(lines(10, -1, null),
+                    3, threads, new ImportPipeline.RowTransformer() {
+                        public ImportRow transform(long lineNumber,
+                                String[] cols) {
+                            transformed.incrementAndGet();
+                            return new ImportRow(lineNumber, cols[0], null,
+                                    null);
+                        }
+                    }, metrics());
+            try {
+                List<ImportRow> rows = readAll(pipeline);
+                assertEquals(7, rows.size());
+                assertEquals(4, rows.get(0).getLineNumber());
+                assertEquals("line4", rows.get(0).getName());
+                assertEquals(7, transformed.get());
+                assertEquals(10, pipeline.getLineCount());
+            } finally {
+                pipeline.close();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void skipsMoreLinesThanThereAre() {
+        ImportPipeline pipeline = new ImportPipeline(lines(3, -1, null), 5,
+                4, SLOW_TRANSFORMER, metrics());
+        try {
+            assertFalse(pipeline.hasNext());
+            assertEquals(3, pipeline.getLineCount());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void readerExceptionEndsTheWriter() {
+        ImportPipeline pipeline = new ImportPipeline(lines(10, 6,
+                new IllegalStateException("broken line")), 0, 4,
+                SLOW_TRANSFORMER, metrics());
+        try {
+            List<ImportRow> rows = readAll(pipeline);
+            assertEquals(5, rows.size());
+            assertEquals("broken line", pipeline.getReadError().getMessage());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void readerErrorEndsTheWriter() {
+        StackOverflowError error = new StackOverflowError();
+        ImportPipeline pipeline = new ImportPipeline(lines(10, 3, error), 0,
+                4, SLOW_TRANSFORMER, metrics());
+        try {
+            List<ImportRow> rows = readAll(pipeline);
+            assertEquals(2, rows.size());
+            assertTrue(
+                    pipeline.getReadError() instanceof IllegalStateException);
+            assertTrue(pipeline.getReadError().getCause() == error);
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test(timeout = 10000, expected = IllegalStateException.class)
+    public void readerExceptionIsThrownWithOneThread() {
+        ImportPipeline pipeline = new ImportPipeline(lines(10, 3,
+                new IllegalStateException("broken line")), 0, 1,
+                SLOW_TRANSFORMER, metrics());
+        try {
+            readAll(pipeline);
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void transformerExceptionsFailTheirRow() {
+        ImportPipeline pipeline = new ImportPipeline(lines(5, -1, null), 0, 2,
+                new ImportPipeline.RowTransformer() {
+                    public ImportRow transform(long lineNumber, String[] cols) {
+                        if (lineNumber == 2) {
+                            throw new IllegalArgumentException("bad value");
+                        }
+                        return new ImportRow(lineNumber, cols[0], null, null);
+                    }
+                }, metrics());
+        try {
+            List<ImportRow> rows = readAll(pipeline);
+            assertEquals(5, rows.size());
+            assertNull(rows.get(0).getError());
+            assertTrue(rows.get(1).getError().contains("bad value"));
+            assertNull(rows.get(2).getError());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failedLinesBecomeFailedRows() {
+        for (int threads = 1; threads <= 2; threads++) {
+            List<String[]> lines = new ArrayList<String[]>();
+            lines.add(new String[] { "a" });
+            lines.add(ImportPipeline.failedLine("Invalid JSON"));
+            lines.add(new String[] { "b" });
+            ImportPipeline pipeline = new ImportPipeline(lines.iterator(), 0,
+                    threads, SLOW_TRANSFORMER, metrics());
+            try {
+                List<ImportRow> rows = readAll(pipeline);
+                assertEquals(3, rows.size());
+                assertEquals("a", rows.get(0).getName());
+                assertEquals(2, rows.get(1).getLineNumber());
+                assertEquals("Invalid JSON", rows.get(1).getError());
+                assertEquals("b", rows.get(2).getName());
+            } finally {
+                pipeline.close();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void countsReadLines() {
+        ImportMetrics metrics = metrics();
+        ImportPipeline pipeline = new ImportPipeline(lines(8, -1, null), 2, 3,
+                SLOW_TRANSFORMER, metrics);
+        try {
+            readAll(pipeline);
+            assertEquals(8, metrics.getRowsRead());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    private static void assertInOrder(int threads, int count) {
+        ImportPipeline pipeline = new ImportPipeline(lines(count, -1, null),
+                0, threads, SLOW_TRANSFORMER, metrics());
+        try {
+            List<ImportRow> rows = readAll(pipeline);
+            assertEquals(count, rows.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i + 1, rows.get(i).getLineNumber());
+                assertEquals("line" + (i + 1), rows.get(i).getName());
+            }
+            assertNull(pipeline.getReadError());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    private static List<ImportRow> readAll(ImportPipeline pipeline) {
+        List<ImportRow> rows = new ArrayList<ImportRow>();
+        while (pipeline.hasNext()) {
+            rows.add(pipeline.next());
+        }
+        return rows;
+    }
+
+    private static ImportMetrics metrics() {
+        return new ImportMetrics("/content/test", 100);
+    }
+
+    /**
+     * Returns the lines "line1" to "lineN". Reading line
+     * <code>failAt</code> throws the given throwable, if there is one.
+     */
+    private static Iterator<String[]> lines(final int count, final int failAt,
+            final Throwable failure) {
+        return new Iterator<String[]>() {
+            private int line;
+
+            public boolean hasNext() {
+                return line < count;
+            }
+
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (++line == failAt) {
+                    if (failure instanceof Error) {
+                        throw (Error) failure;
+                    }
+                    throw (RuntimeException) failure;
+                }
+                return new String[] { "line" + line };
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
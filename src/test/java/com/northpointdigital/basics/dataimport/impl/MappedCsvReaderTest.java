@@ -0,0 +1,231 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MappedCsvReaderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Quoted separators, quoted CRLF and LF, doubled quotes, empty fields
+    private static final String MIXED = "id,title,text\r\n"
+            + "1,\"a,b\",plain\r\n"
+            + "2,\"line\r\nbreak\",\"say \"\"hi\"\"\"\n"
+            + "3,,\n"
+            + "4,\"\",\"\"\"\"\r\n"
+            + "5,\"x\ny\nz\",last";
+
+    @Test
+    public void quotedSeparatorsAndNewlines() throws IOException {
+        assertEquals(lines(new String[] { "a", "b,c", "d\ne", "f\r\ng" }),
+                read("a,\"b,c\",\"d\ne\",\"f\r\ng\"\n", 4, 1024));
+    }
+
+    @Test
+    public void doubledQuotes() throws IOException {
+        assertEquals(lines(new String[] { "say \"hi\"", "\"", "" },
+                new String[] { "\"\"", "x" }),
+                read("\"say \"\"hi\"\"\",\"\"\"\",\"\"\n\"\"\"\"\"\",x\n", 3,
+                        1024));
+    }
+
+    @Test
+    public void crlf() throws IOException {
+        assertEquals(lines(new String[] { "a", "b" }, new String[] { "c", "d" },
+                new String[] { "e" }), read("a,b\r\nc,d\r\ne\r\n", 2, 1024));
+    }
+
+    @Test
+    public void emptyTrailingFields() throws IOException {
+        assertEquals(lines(new String[] { "a", "", "" }, new String[] { "", "" },
+                new String[] { "b", "" }), read("a,,\n,\nb,", 3, 1024));
+    }
+
+    @Test
+    public void skipsColumnsAfterMaxColumns() throws IOException {
+        assertEquals(lines(new String[] { "a", "b" }, new String[] { "c" }),
+                read("a,b,\"c,\n\"\"\",d\nc\n", 2, 1024));
+    }
+
+    @Test
+    public void readsLinesAcrossWindowBoundaries() throws IOException {
+        List<List<String>> expected = lines(
+                new String[] { "id", "title", "text" },
+                new String[] { "1", "a,b", "plain" },
+                new String[] { "2", "line\r\nbreak", "say \"hi\"" },
+                new String[] { "3", "", "" },
+                new String[] { "4", "", "\"" },
+                new String[] { "5", "x\ny\nz", "last" });
+        // The longest line takes 29 bytes; every larger window size puts
+        // some line, quote, CR or LF on a window boundary
+        for (int windowSize = 29; windowSize <= MIXED.length(); windowSize++) {
+            assertEquals("window size " + windowSize, expected,
+                    read(MIXED, 3, windowSize));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsOnLinesLongerThanTheWindow() throws IOException {
+        read("a,b\nabcdefghij\n", 2, 8);
+    }
+
+    @Test
+    public void splitsOnLineBoundariesOutsideQuotes() throws IOException {
+        // Offsets of the lines of MIXED; line breaks inside quotes are not
+        List<Long> lineStarts = Arrays.asList(Long.valueOf(0),
+                Long.valueOf(15), Long.valueOf(30), Long.valueOf(59),
+                Long.valueOf(63), Long.valueOf(74));
+        List<List<String>> expected = read(MIXED, 3, 1024);
+        File file = write(MIXED);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            for (int windowSize = 8; windowSize <= 32; windowSize *= 2) {
+                for (int parts = 1; parts <= MIXED.length(); parts++) {
+                    long[] offsets = MappedCsvReader.split(channel, parts, '"',
+                            windowSize);
+                    assertEquals(0, offsets[0]);
+                    assertEquals(channel.size(), offsets[offsets.length - 1]);
+                    assertTrue(offsets.length <= parts + 1);
+
+                    List<List<String>> actual = new ArrayList<List<String>>();
+                    for (int i = 0; i < offsets.length - 1; i++) {
+                        assertTrue("split into " + parts + " at "
+                                + offsets[i], lineStarts.contains(Long
+                                .valueOf(offsets[i])));
+                        assertTrue(offsets[i] < offsets[i + 1]);
+                        actual.addAll(toLists(new MappedCsvReader(channel,
+                                offsets[i], offsets[i + 1], 3, ',', '"',
+                                UTF_8, 1024)));
+                    }
+                    assertEquals("split into " + parts, expected, actual);
+                }
+            }
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void usesTheGivenQuote() throws IOException {
+        File file = write("'a,b','it''s'\n");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            assertEquals(lines(new String[] { "a,b", "it's" }),
+                    toLists(new MappedCsvReader(raf.getChannel(), 2, ',', '\'',
+                            UTF_8)));
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void decodesMultiByteCharacters() throws IOException {
+        assertEquals(lines(new String[] { "caf\u00e9", "\u20ac" }),
+                read("caf\u00e9,\"\u20ac\"\n", 2, 1024));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonAsciiSeparators() throws IOException {
+        read("a\u00a7b\n", 2, '\u00a7', UTF_8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonAsciiQuotes() throws IOException {
+        File file = write("a,b\n");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            new MappedCsvReader(raf.getChannel(), 2, ',', '\u00ab', UTF_8);
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCharsetsThatAreNotAsciiCompatible() throws IOException {
+        read("a,b\n", 2, ',', Charset.forName("UTF-16"));
+    }
+
+    @Test
+    public void acceptsSingleByteCharsets() throws IOException {
+        assertEquals(lines(new String[] { "caf\u00e9", "b" }),
+                read("caf\u00e9;b\n", 2, ';', Charset.forName("ISO-8859-1")));
+    }
+
+    private static List<List<String>> read(String content, int maxColumns,
+            char separator, Charset charset) throws IOException {
+        File file = File.createTempFile("mapped-csv", ".csv");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(charset));
+        } finally {
+            out.close();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return toLists(new MappedCsvReader(raf.getChannel(), maxColumns,
+                    separator, '"', charset));
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    private static List<List<String>> read(String content, int maxColumns,
+            int windowSize) throws IOException {
+        File file = write(content);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return toLists(new MappedCsvReader(channel, 0, channel.size(),
+                    maxColumns, ',', '"', UTF_8, windowSize));
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    private static File write(String content) throws IOException {
+        File file = File.createTempFile("mapped-csv", ".csv");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static List<List<String>> toLists(MappedCsvReader reader) {
+        List<List<String>> lines = new ArrayList<List<String>>();
+        while (reader.hasNext()) {
+            lines.add(Arrays.asList(reader.next()));
+        }
+        return lines;
+    }
+
+    private static List<List<String>> lines(String[]... lines) {
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (String[] line : lines) {
+            result.add(Arrays.asList(line));
+        }
+        return result;
+    }
+}
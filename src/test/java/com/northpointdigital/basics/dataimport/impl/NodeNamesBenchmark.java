@@ -0,0 +1,53 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link NodeNames#sanitize} with the regular expressions it
+ * replaces. Not run by the build; start it with
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.northpointdigital.basics.dataimport.impl.NodeNamesBenchmark</code>
+ * or from the IDE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeNamesBenchmark {
+    @Param({ "events/2014-01-01/summer-fair", "News & Events: Summer Fair 2014!",
+            "--a -- b--" })
+    public String name;
+
+    @Benchmark
+    public String sanitize() {
+        return NodeNames.sanitize(name);
+    }
+
+    @Benchmark
+    public String regex() {
+        return name.replaceAll("[^a-zA-Z0-9\\-\\/]", "")
+                .replaceAll("-+", "-").replaceAll("^-", "")
+                .replaceAll("-$", "");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(
+                NodeNamesBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,84 @@
+package com.northpointdigital.basics.dataimport.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class NodeNamesTest {
+    private static final String[] NAMES = { "", "-", "--", "---", "a", "abc",
+            "a-b", "a--b", "a---b", "-a", "--a", "a-", "a--", "-a-",
+            "--a--b--", "a b", "a - b", "a -- b", " - a - ", "a/b", "/a/b/",
+            "a/-b", "a-/b", "-/-", "//", "a/--/b", "Caf\u00e9 Cr\u00e8me",
+            "\u00e9-a", "a-\u00e9", "\u00e9-\u00e9", "a.b_c:d'e", "a.-.-b",
+            "-.-", "2014-01-01", "News & Events!", "A-Z-0-9", "\t-a-\n",
+            "a\u2013b", "\u00dcber-Gr\u00f6\u00dfe" };
+
+    /**
+     * The regular expressions NodeNames.sanitize replaces.
+     */
+    private static String sanitizeWithRegex(String name) {
+        return name.replaceAll("[^a-zA-Z0-9\\-\\/]", "")
+                .replaceAll("-+", "-").replaceAll("^-", "")
+                .replaceAll("-$", "");
+    }
+
+    @Test
+    public void sanitizeMatchesRegex() {
+        for (String name : NAMES) {
+            assertEquals("sanitize(\"" + name + "\")",
+                    sanitizeWithRegex(name), NodeNames.sanitize(name));
+        }
+    }
+
+    @Test
+    public void sanitizeMatchesRegexOnAllShortStrings() {
+        // Every string of up to four characters from a small alphabet
+        // that covers dashes, slashes, kept and dropped characters
+        char[] alphabet = { '-', '/', 'a', 'Z', '0', ' ', '.', '\u00e9' };
+        StringBuilder sb = new StringBuilder();
+        for (int length = 0; length <= 4; length++) {
+            int count = (int) Math.pow(alphabet.length, length);
+            for (int n = 0; n < count; n++) {
+                sb.setLength(0);
+                for (int i = 0, rest = n; i < length; i++) {
+                    sb.append(alphabet[rest % alphabet.length]);
+                    rest /= alphabet.length;
+                }
+                String name = sb.toString();
+                assertEquals("sanitize(\"" + name + "\")",
+                        sanitizeWithRegex(name), NodeNames.sanitize(name));
+            }
+        }
+    }
+
+    @Test
+    public void sanitizeDashes() {
+        assertEquals("a", NodeNames.sanitize("-a"));
+        assertEquals("a", NodeNames.sanitize("a-"));
+        assertEquals("a-b", NodeNames.sanitize("a---b"));
+        assertEquals("a-b", NodeNames.sanitize("--a - b--"));
+        assertEquals("", NodeNames.sanitize("---"));
+    }
+
+    @Test
+    public void sanitizeKeepsSlashes() {
+        assertEquals("/a/b/", NodeNames.sanitize("/a/b/"));
+        assertEquals("a/-b", NodeNames.sanitize("a/ -b"));
+        assertEquals("/-/", NodeNames.sanitize("-/--/-"));
+    }
+
+    @Test
+    public void sanitizeReturnsCleanNamesAsTheyAre() {
+        String name = "events/2014-01-01/a-b";
+        assertSame(name, NodeNames.sanitize(name));
+    }
+
+    @Test
+    public void toNodePathRemovesColonsAndQuotes() {
+        assertEquals("/content/ab/cd", NodeNames.toNodePath("/content/a:b/c'd"));
+        assertEquals("", NodeNames.toNodePath(":'"));
+        String path = "/content/a-b";
+        assertSame(path, NodeNames.toNodePath(path));
+    }
+}